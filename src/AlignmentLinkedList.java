@@ -24,6 +24,18 @@ class AlignmentLinkedList{
 	* @param path 			int[], a greedy hamiltonian path amongst the collection semi-global alignment scores.
 	*/
 	public AlignmentLinkedList(Collection collection, int[] path){
+		this(collection, path, null);
+	}
+
+	/**
+	* Fragments are stored in reverse order, since they are aligned backwards using the alignment matrix.
+	* 
+	* @param collection 	Collection containing the fragments to align.
+	* @param path 			int[], a greedy hamiltonian path amongst the collection semi-global alignment scores.
+	* @param overlaps 		int[][], for every i>0, the alignment of path[i-1] with path[i] found by the overlap phase, as {score, end of the alignment in path[i]}.
+	* 						Null, or null entries, when unknown. A negative end means the overlap phase doesn't know it.
+	*/
+	public AlignmentLinkedList(Collection collection, int[] path, int[][] overlaps){
 		int owner_f = path[0];
 		Fragment f = collection.getFragment(owner_f);
 
@@ -40,7 +52,7 @@ class AlignmentLinkedList{
 
 		for(int i=1; i<path.length; i++){
 			Fragment g = collection.getFragment(path[i]);
-			align(f, g, owner_f, path[i]);
+			align(f, g, owner_f, path[i], overlaps==null ? null : overlaps[i]);
 			f=g;
 			owner_f=path[i];
 		}
@@ -55,26 +67,58 @@ class AlignmentLinkedList{
 	* @param owner_g 	int used to mark which nodes belong to G.
 	*/
 	public void align(Fragment f, Fragment g, int owner_f, int owner_g){
+		align(f, g, owner_f, owner_g, null);
+	}
 
-		int[][] a = f.semiGlobalAlignmentMatrix(g);
-
-		int tmp_max=-2*a.length*a[0].length;
-		int index_f=0;
-		int index_g=0;
+	/**
+	* Aligns the fragment G to the fragment F.
+	* When the overlap phase already found where the best alignment ends in G, the traceback never goes right of that column,
+	* and rarely goes above the first rows of F it covers : only that window of the alignment matrix is computed.
+	* The traceback is first run on the window without building the list. If it needs rows above the window, the window is grown to the top of F,
+	* and if the entry point doesn't match the overlap, the whole matrix is computed. As long as the overlap holds the best score of the last row
+	* of the whole matrix and its rightmost column, which is what exact overlap scorers record, the alignment is the same as with the whole matrix.
+	* 
+	* @param f 			Fragment, the fragment to align upon.
+	* @param g 			Fragment to be aligned.
+	* @param owner_f 	int used to mark which nodes belong to F.
+	* @param owner_g 	int used to mark which nodes belong to G.
+	* @param overlap 	int[], {score, end of the alignment in G} of F->G found by the overlap phase. Null, or a negative end, uses the whole matrix.
+	*/
+	public void align(Fragment f, Fragment g, int owner_f, int owner_g, int[] overlap){
 
-		// Finding entry point in alignment matrix
-		for(int j=0; j<a[0].length; j++){
-			if(tmp_max<=a[a.length-1][j]){
-				tmp_max=a[a.length-1][j];
-				index_f=a.length-1;
-				index_g=j;
+		int[] a;
+		int rows, width;
+		if(overlap!=null && overlap[1]>=0){
+			// Each row more than columns on the path costs a gap, which the score bounds.
+			int end = overlap[1];
+			int start = Math.max(0, f.length()-end-(end-overlap[0])/2-1);
+			a = f.semiGlobalAlignmentWindow(g, start, end);
+			rows = f.length()-start+1;
+			width = end+1;
+			if(entry(a, rows, width)!=end || a[(rows-1)*width+end]!=overlap[0]){
+				a = f.semiGlobalAlignmentMatrix(g);
+				rows = f.length()+1;
+				width = g.length()+1;
+			}
+			else if(start>0 && !tracebackFits(a, rows, width, end)){
+				a = f.semiGlobalAlignmentWindow(g, 0, end);
+				rows = f.length()+1;
 			}
 		}
+		else{
+			a = f.semiGlobalAlignmentMatrix(g);
+			rows = f.length()+1;
+			width = g.length()+1;
+		}
+
+		// Finding entry point in alignment matrix
+		int index_f=rows-1;
+		int index_g=entry(a, rows, width);
 
 		AlignmentNode current = head;
 
 		// Treating nucleids (at the end) of G unmatched to nucleids of F
-		for(int i=0; i<a[0].length-index_g-1; i++){
+		for(int i=0; i<g.length()-index_g; i++){
 			AlignmentNode unmatched = new AlignmentNode(g.bitAt(g.length()-i-1), owner_g);
 			unmatched.setNext(current.getNext());
 			current.setNext(unmatched);
@@ -84,9 +128,9 @@ class AlignmentLinkedList{
 		while(index_f>0 && index_g>0){
 
 			// Find which move gave the best score.
-			int left = a[index_f][index_g-1];
-			int leftup = a[index_f-1][index_g-1];
-			int up = a[index_f-1][index_g];
+			int left = a[index_f*width+index_g-1];
+			int leftup = a[(index_f-1)*width+index_g-1];
+			int up = a[(index_f-1)*width+index_g];
 
 			int max = Math.max(left, Math.max(up, leftup));
 
@@ -129,6 +173,59 @@ class AlignmentLinkedList{
 		}
 	}
 
+	/**
+	* Finds the entry point of the traceback, the best cell of the last row of an alignment matrix. Ties go to the rightmost cell.
+	*
+	* @param a 		int[], the alignment matrix, stored row by row.
+	* @param rows 	int, number of rows of the matrix.
+	* @param width 	int, number of columns of the matrix.
+	* @return 		int, column of the entry point.
+	*/
+	private static int entry(int[] a, int rows, int width){
+		int tmp_max=a[(rows-1)*width];
+		int index_g=0;
+		for(int j=1; j<width; j++){
+			if(tmp_max<=a[(rows-1)*width+j]){
+				tmp_max=a[(rows-1)*width+j];
+				index_g=j;
+			}
+		}
+		return index_g;
+	}
+
+	/**
+	* Runs the traceback on a window of the alignment matrix without building the list, to know if it stays inside the window.
+	* Moves are chosen the same way as in align.
+	*
+	* @param a 			int[], the window, stored row by row, its last row being the last row of the matrix.
+	* @param rows 		int, number of rows of the window.
+	* @param width 		int, number of columns of the window.
+	* @param index_g 	int, column of the entry point.
+	* @return 			boolean, true if the traceback reaches column 0 before leaving the window by the top.
+	*/
+	private static boolean tracebackFits(int[] a, int rows, int width, int index_g){
+		int index_f=rows-1;
+		while(index_f>0 && index_g>0){
+			int left = a[index_f*width+index_g-1];
+			int leftup = a[(index_f-1)*width+index_g-1];
+			int up = a[(index_f-1)*width+index_g];
+
+			int max = Math.max(left, Math.max(up, leftup));
+
+			if(max==leftup){
+				index_f--;
+				index_g--;
+			}
+			else if(max==left){
+				index_g--;
+			}
+			else{
+				index_f--;
+			}
+		}
+		return index_g==0;
+	}
+
 	/**
 	* toString override, for printing purpose.
 	*
@@ -145,22 +242,28 @@ class AlignmentLinkedList{
 	}
 
 	/**
-	* Computes the consensus contig.
+	* Computes the consensus contig, directly packed 4 nucleids per byte.
+	* Nodes are stored in reverse order, so the list is counted first and the nucleids are then written from the end of the contig.
 	*
-	* @return 	String, the consensus contig.
+	* @return 	Fragment, the consensus contig.
 	*/
-	public String getContig(){
-		String gitnoc = "";
+	public Fragment getContig(){
+		int length = 0;
 		AlignmentNode current = head.getNext();
 		while(!current.equals(tail)){
-			gitnoc+=current.consensus();
+			length++;
 			current=current.getNext();
 		}
-		String contig = "";
-		for(int i=gitnoc.length()-1; i>=0; i--){
-			contig+=gitnoc.charAt(i);
+
+		byte[] contig = new byte[(length+3)/4];
+		int index = length-1;
+		current = head.getNext();
+		while(!current.equals(tail)){
+			contig[index>>2] |= (byte)(current.consensus()<<(6-2*(index&3)));
+			index--;
+			current=current.getNext();
 		}
-		return contig;
+		return new Fragment(contig, length);
 	}
 
 	/**
@@ -269,14 +372,14 @@ class AlignmentLinkedList{
 		/**
 		* Goes trough the node's data to figure out the consensus nucleid by majority vote. If tied : a>c>t>g.
 		*
-		* @return 	char, consensus nucleid by majority vote.
+		* @return 	byte, two-bits representation of the consensus nucleid by majority vote.
 		*/
-		public char consensus(){
+		public byte consensus(){
 			int winner=0;
 			for(int i=1; i<4; i++){
 				winner = data[i] > data[winner] ? i : winner;
 			}
-			return Fragment.twoBitsToChar((byte)winner);
+			return (byte)winner;
 		}
 	}
 }
\ No newline at end of file
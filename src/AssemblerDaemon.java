@@ -0,0 +1,272 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Long-running FragmentAssembler, that keeps the JVM warm between jobs.
+* The daemon listens on a local socket and reads one command per line :
+* ASSEMBLE <file.fasta> <out.fasta> <out_ic.fasta> [engine] 	assembles a collection, answers "OK <contig length> <milliseconds>" or "ERROR <message>".
+* 													The overlap engine is chosen by EngineSelector, the daemon's -engine (default auto) unless the job names one.
+* STATS 											answers "OK <cached entries> <cached MB> <hits> <misses>".
+* SHUTDOWN 										stops the daemon.
+* Parsed collections and their overlap graphs are kept in a LRU cache bounded in size, keyed by file path and modification time,
+* and by engine for the overlap graphs.
+* Jobs of different connections run concurrently on a pool of worker threads.
+*
+* Usage : java AssemblerDaemon [-port 4606] [-cache <MB>] [-engine <auto|full|batch|banded>]
+*
+* @author 	HUYLENBROECK Florent
+*/
+class AssemblerDaemon{
+
+	private static final int DEFAULT_PORT = 4606;
+
+	private ServerSocket server;
+	private ExecutorService connections;
+	private ExecutorService workers;
+	private LRUCache cache;
+	private String engine;
+
+	public static void main(String[] args){
+		int port = DEFAULT_PORT;
+		long cache_size = Runtime.getRuntime().maxMemory()/4;
+		String engine = "auto";
+
+		for(int i=0; i<args.length; i++){
+			switch(args[i]){
+				case "-port" : port = Integer.parseInt(args[++i]); break;
+				case "-cache" : cache_size = Long.parseLong(args[++i])*1024*1024; break;
+				case "-engine" :
+					engine = args[++i];
+					if(!isEngine(engine)){
+						System.out.println("Error while parsing command. Unknown engine \""+engine+"\", expected auto, "+String.join(", ", EngineSelector.ENGINES)+". Exiting.");
+						System.exit(1);
+					}
+					break;
+				default :
+					System.out.println("Error while parsing command. Unknown flag \""+args[i]+"\". Exiting.");
+					System.out.println("Please format you command as follows :");
+					System.out.println("java AssemblerDaemon [-port <port>] [-cache <size_MB>] [-engine <auto|full|batch|banded>]");
+					System.exit(1);
+			}
+		}
+
+		try{
+			new AssemblerDaemon(port, cache_size, engine).serve();
+		} catch(IOException e) {
+			System.out.println("Error while opening the socket. Exiting.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	* @param port 			int, port to listen on, on the loopback interface.
+	* @param cache_size 	long, size in bytes of the cache of collections and overlap graphs.
+	* @param engine 		String, overlap engine of the jobs that don't name one, "auto" to let EngineSelector calibrate.
+	*/
+	public AssemblerDaemon(int port, long cache_size, String engine) throws IOException{
+		this.engine = engine;
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		connections = Executors.newCachedThreadPool();
+		workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		cache = new LRUCache(cache_size);
+	}
+
+	/**
+	* Accepts connections until the daemon is shut down.
+	*/
+	public void serve(){
+		System.out.println("FragmentAssembler daemon listening on port "+server.getLocalPort()+".");
+		while(!server.isClosed()){
+			try{
+				Socket socket = server.accept();
+				connections.execute(() -> handle(socket));
+			} catch(IOException e) {
+				if(!server.isClosed()){
+					e.printStackTrace();
+				}
+			}
+		}
+		connections.shutdown();
+		workers.shutdown();
+		System.out.println("Done.");
+	}
+
+	/**
+	* Reads the commands of a connection one line at a time, and answers each of them.
+	*
+	* @param socket 	Socket, the client connection.
+	*/
+	private void handle(Socket socket){
+		try(Socket s = socket;
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream()), true)){
+
+			String line;
+			while((line = in.readLine()) != null){
+				String[] command = line.trim().split("\\s+");
+				if(command[0].equals("ASSEMBLE") && (command.length==4 || command.length==5)){
+					String job_engine = command.length==5 ? command[4] : engine;
+					if(!isEngine(job_engine)){
+						out.println("ERROR Unknown engine \""+job_engine+"\".");
+						continue;
+					}
+					try{
+						out.println(workers.submit(() -> assemble(command[1], command[2], command[3], job_engine)).get());
+					} catch(ExecutionException e) {
+						out.println("ERROR "+e.getCause());
+					}
+				}
+				else if(command[0].equals("STATS")){
+					out.println("OK "+cache.stats());
+				}
+				else if(command[0].equals("SHUTDOWN")){
+					out.println("OK");
+					server.close();
+					return;
+				}
+				else{
+					out.println("ERROR Unknown command \""+line+"\".");
+				}
+			}
+		} catch(IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	* Runs one assembly job, using the cached collection and overlap graph when available.
+	*
+	* @param path_in 		String, path to the .fasta file of the collection.
+	* @param path_out 		String, path to the .fasta file of the contig.
+	* @param path_out_ic 	String, path to the .fasta file of the inverted and complemented contig.
+	* @param engine 		String, overlap engine given to EngineSelector.select.
+	* @return 				String, the answer to the client.
+	*/
+	private String assemble(String path_in, String path_out, String path_out_ic, String engine) throws IOException{
+		long start = System.nanoTime();
+		File file = new File(path_in);
+		if(!file.isFile()){
+			return "ERROR File \""+path_in+"\" not found.";
+		}
+		String key = file.getCanonicalPath()+"@"+file.lastModified();
+
+		Collection collection = (Collection)cache.get("collection:"+key);
+		if(collection==null){
+			collection = new Collection(FastaIO.openFasta(path_in));
+			long bytes = 0;
+			for(int i=0; i<collection.length(); i++){
+				bytes += collection.getFragment(i).length()/4+64;
+			}
+			cache.put("collection:"+key, collection, bytes);
+		}
+
+		long[] phase_nanos = new long[FragmentAssembler.PHASES];
+		Fragment[] contigs;
+		if(FragmentAssembler.denseGraphFits(collection)){
+			// The graph is cached with where the alignment of each edge ends, {graph, ends}.
+			int[][][] overlap_graph = (int[][][])cache.get("graph:"+engine+":"+key);
+			if(overlap_graph==null){
+				int[][] ends = new int[collection.length()][collection.length()];
+				overlap_graph = new int[][][] {FragmentAssembler.getOverlapGraph(collection, EngineSelector.select(collection, engine), ends), ends};
+				cache.put("graph:"+engine+":"+key, overlap_graph, (long)collection.length()*(collection.length()*8+32));
+			}
+			contigs = FragmentAssembler.assemble(collection, overlap_graph[0], overlap_graph[1], phase_nanos);
+		}
+		else{
+			contigs = FragmentAssembler.assemble(collection, EngineSelector.select(collection, engine), 0, phase_nanos);
+		}
+
+		String collection_n = path_in.replaceAll("[^0-9S]", "");
+		FastaIO.writeFasta(path_out, contigs[0], collection_n);
+		FastaIO.writeFasta(path_out_ic, contigs[1], collection_n);
+		return "OK "+contigs[0].length()+" "+(System.nanoTime()-start)/1000000;
+	}
+
+	/**
+	* Tells if an engine name can be given to EngineSelector.select.
+	*
+	* @param engine 	String, the engine name.
+	* @return 			boolean, true if the engine is "auto" or one of EngineSelector.ENGINES.
+	*/
+	private static boolean isEngine(String engine){
+		return engine.equals("auto") || EngineSelector.create(engine)!=null;
+	}
+
+	/**
+	* Least recently used cache, bounded by the estimated size in bytes of its entries.
+	*
+	* @author 	HUYLENBROECK Florent
+	*/
+	private static class LRUCache{
+
+		private LinkedHashMap<String, Object> entries = new LinkedHashMap<String, Object>(16, 0.75f, true);
+		private HashMap<String, Long> sizes = new HashMap<String, Long>();
+		private long capacity;
+		private long size;
+		private long hits;
+		private long misses;
+
+		/**
+		* @param capacity 	long, maximum size in bytes of the cached entries.
+		*/
+		public LRUCache(long capacity){
+			this.capacity = capacity;
+		}
+
+		/**
+		* Gets an entry and marks it as the most recently used.
+		*
+		* @param key 	String, key of the entry.
+		* @return 		Object, the entry or null if it is not cached.
+		*/
+		public synchronized Object get(String key){
+			Object value = entries.get(key);
+			if(value==null){
+				misses++;
+			}
+			else{
+				hits++;
+			}
+			return value;
+		}
+
+		/**
+		* Adds an entry, evicting the least recently used ones until the cache fits its capacity.
+		* Entries larger than the whole capacity are not cached.
+		*
+		* @param key 	String, key of the entry.
+		* @param value 	Object, the entry.
+		* @param bytes 	long, estimated size of the entry.
+		*/
+		public synchronized void put(String key, Object value, long bytes){
+			if(bytes>capacity){
+				return;
+			}
+			if(entries.remove(key)!=null){
+				size -= sizes.remove(key);
+			}
+			entries.put(key, value);
+			sizes.put(key, bytes);
+			size += bytes;
+
+			Iterator<Map.Entry<String, Object>> eldest = entries.entrySet().iterator();
+			while(size>capacity){
+				String evicted = eldest.next().getKey();
+				eldest.remove();
+				size -= sizes.remove(evicted);
+			}
+		}
+
+		/**
+		* Gives the statistics of the cache.
+		*
+		* @return 	String, "<entries> <size MB> <hits> <misses>".
+		*/
+		public synchronized String stats(){
+			return entries.size()+" "+size/(1024*1024)+" "+hits+" "+misses;
+		}
+	}
+}
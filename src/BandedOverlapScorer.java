@@ -0,0 +1,374 @@
+import java.util.*;
+
+/**
+* Seed-and-extend overlap scorer.
+* Shared k-mers (seeds) between two fragments vote for the diagonals (i-j) of the alignment matrix they lie on.
+* The semiglobal alignment is then only computed inside a band around the diagonals that got enough votes, instead of on the whole matrix.
+* As long as the best alignment stays inside the band, the scores are the same as Fragment.semiGlobalAlignmentScore.
+* Cells outside of the band count as unreachable, except on the last row and the last column, where the scores are read :
+* those are reached from the band, from the free first row and column, or from the CORNER*CORNER corners of the matrix where
+* a short end of one fragment aligns with the start of the other, by gaps along the border.
+* When no diagonal gets enough votes, or when the band would cover most of the matrix,
+* the full dynamic programming is used instead.
+* The k-mer indexes of the fragments are kept by the scorer, for the last array of fragments given to scoreBatch, that is for one overlap graph.
+*
+* @author 	HUYLENBROECK Florent
+*/
+class BandedOverlapScorer implements OverlapScorer{
+
+	public static final int DEFAULT_K = 12;
+	public static final int DEFAULT_BAND = 16;
+	public static final int DEFAULT_MIN_SEEDS = 2;
+
+	/**
+	* K-mers that occur more than this many times in both fragments are ignored, to keep repeats from flooding the votes.
+	*/
+	private static final int MAX_SEED_PAIRS = 64;
+
+	/**
+	* Side of the corners of the matrix computed besides the band. Alignments of random sequences lose about half a point per column,
+	* so the best short overlap between unrelated ends is much shorter than that.
+	*/
+	private static final int CORNER = 64;
+
+	private static final int UNREACHABLE = Integer.MIN_VALUE/2;
+
+	private static final ThreadLocal<int[][]> SCRATCH = ThreadLocal.withInitial(() -> new int[][] {new int[0], new int[0], new int[CORNER+1], new int[CORNER+1]});
+
+	private int k;
+	private int band;
+	private int min_seeds;
+	private Fragment[] indexed;
+	private long[][] indexes;
+	private long banded_cells;
+	private long full_cells;
+
+	public BandedOverlapScorer(){
+		this(DEFAULT_K, DEFAULT_BAND, DEFAULT_MIN_SEEDS);
+	}
+
+	/**
+	* @param k 			int, length of the seeds, at most 15.
+	* @param band 		int, number of diagonals kept on each side of the seeded diagonals.
+	* @param min_seeds 	int, number of seeds a diagonal needs to be kept.
+	*/
+	public BandedOverlapScorer(int k, int band, int min_seeds){
+		this.k = k;
+		this.band = band;
+		this.min_seeds = min_seeds;
+	}
+
+	/**
+	* Gives the number of cells computed so far, and the number of cells the full dynamic programming would have computed.
+	*
+	* @return 	long[], {computed cells, full matrix cells}.
+	*/
+	public synchronized long[] cells(){
+		return new long[] {banded_cells, full_cells};
+	}
+
+	/**
+	* Computes the semiglobal alignment scores of two fragments, inside a band around their seeded diagonals.
+	*
+	* @param f 			Fragment, the first fragment.
+	* @param g 			Fragment, the second fragment.
+	* @param result 	int[] of length 4 that receives {f->g, g->f, end of f->g in g, end of g->f in f}. Ends are -1 when the band was used.
+	*/
+	public void score(Fragment f, Fragment g, int[] result){
+		score(f, g, kmerIndex(f, k), kmerIndex(g, k), result);
+	}
+
+	/**
+	* Computes the semiglobal alignment scores of a fragment with a batch of fragments.
+	* The k-mer index of f is computed once for the batch, and the ones of g are kept as long as the same array is given.
+	*
+	* @param f 		Fragment, the first fragment.
+	* @param g 		Fragment[], the other fragments.
+	* @param from 	int, index in g of the first fragment to align with f.
+	* @param to 	int, index in g after the last fragment to align with f.
+	* @param results 	int[4][] that receives, at index k for every k in [from, to[, the same values as score(f, g[k]) in the same order.
+	*/
+	public void scoreBatch(Fragment f, Fragment[] g, int from, int to, int[][] results){
+		long[][] indexes_g = kmerIndexes(g);
+		long[] index_f = kmerIndex(f, k);
+		int[] result = new int[4];
+		for(int l=from; l<to; l++){
+			score(f, g[l], index_f, indexes_g[l], result);
+			for(int x=0; x<4; x++){
+				results[x][l] = result[x];
+			}
+		}
+	}
+
+	/**
+	* Computes the semiglobal alignment scores of two fragments given their k-mer indexes.
+	*
+	* @param f 			Fragment, the first fragment.
+	* @param g 			Fragment, the second fragment.
+	* @param index_f 	long[], k-mer index of f.
+	* @param index_g 	long[], k-mer index of g.
+	* @param result 	int[] of length 4 that receives {f->g, g->f, end of f->g in g, end of g->f in f}.
+	*/
+	private void score(Fragment f, Fragment g, long[] index_f, long[] index_g, int[] result){
+		int m = f.length(), n = g.length();
+
+		// Diagonal d=i-j of the matrix, shifted by n so that it is a positive index.
+		int[] votes = voteDiagonals(f, g, index_f, index_g);
+		int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+		for(int d=0; d<m+n; d++){
+			if(votes[d]>=min_seeds){
+				lo = Math.min(lo, d-n);
+				hi = Math.max(hi, d-n);
+			}
+		}
+
+		long cells;
+		if(lo>hi || (hi-lo+2*band+1)*2L>Math.min(m, n)){
+			f.semiGlobalAlignmentScore(g, result);
+			cells = (long)m*n;
+		}
+		else{
+			cells = bandedScore(f, g, lo-band, hi+band, result);
+		}
+
+		synchronized(this){
+			banded_cells += cells;
+			full_cells += (long)m*n;
+		}
+	}
+
+	/**
+	* Gives the k-mer indexes of an array of fragments. They are computed for the whole array the first time it is seen,
+	* and kept until another array is given.
+	*
+	* @param fragments 	Fragment[], the fragments.
+	* @return 			long[][], the k-mer index of each fragment, at the same index.
+	*/
+	private synchronized long[][] kmerIndexes(Fragment[] fragments){
+		if(indexed!=fragments){
+			indexes = new long[fragments.length][];
+			for(int i=0; i<fragments.length; i++){
+				indexes[i] = kmerIndex(fragments[i], k);
+			}
+			indexed = fragments;
+		}
+		return indexes;
+	}
+
+	/**
+	* Gives every k-mer of a fragment along with its position, sorted. Each entry holds the 2k-bit k-mer in its upper 32 bits and its position in its lower 32 bits.
+	*
+	* @param f 	Fragment, the fragment.
+	* @param k 	int, length of the k-mers, at most 15.
+	* @return 	long[], the sorted k-mer index.
+	*/
+	private static long[] kmerIndex(Fragment f, int k){
+		int length = f.length();
+		long[] index = new long[Math.max(0, length-k+1)];
+		int mask = (1<<(2*k))-1;
+		int kmer = 0;
+		for(int i=0; i<length; i++){
+			kmer = ((kmer<<2) | f.bitAt(i)) & mask;
+			if(i>=k-1){
+				index[i-k+1] = ((long)kmer<<32) | (i-k+1);
+			}
+		}
+		Arrays.sort(index);
+		return index;
+	}
+
+	/**
+	* Counts, for every diagonal of the alignment matrix, the number of seeds it holds.
+	* Both k-mer indexes are sorted, so seeds are found by merging them.
+	*
+	* @param f 			Fragment, the first fragment.
+	* @param g 			Fragment, the second fragment.
+	* @param index_f 	long[], k-mer index of f.
+	* @param index_g 	long[], k-mer index of g.
+	* @return 			int[], votes of each diagonal d=i-j, at index d+g.length(). Belongs to a per-thread scratch buffer.
+	*/
+	private int[] voteDiagonals(Fragment f, Fragment g, long[] index_f, long[] index_g){
+		int m = f.length(), n = g.length();
+		int[][] scratch = SCRATCH.get();
+		if(scratch[0].length<m+n){
+			scratch[0] = new int[m+n];
+		}
+		int[] votes = scratch[0];
+		for(int d=0; d<m+n; d++){
+			votes[d] = 0;
+		}
+
+		int a = 0, b = 0;
+		while(a<index_f.length && b<index_g.length){
+			long kmer_f = index_f[a]>>>32, kmer_g = index_g[b]>>>32;
+			if(kmer_f<kmer_g){
+				a++;
+			}
+			else if(kmer_f>kmer_g){
+				b++;
+			}
+			else{
+				int end_f = a, end_g = b;
+				while(end_f<index_f.length && index_f[end_f]>>>32==kmer_f){
+					end_f++;
+				}
+				while(end_g<index_g.length && index_g[end_g]>>>32==kmer_g){
+					end_g++;
+				}
+				if((end_f-a)*(end_g-b)<=MAX_SEED_PAIRS){
+					for(int x=a; x<end_f; x++){
+						for(int y=b; y<end_g; y++){
+							votes[(int)index_f[x]-(int)index_g[y]+n]++;
+						}
+					}
+				}
+				a = end_f;
+				b = end_g;
+			}
+		}
+		return votes;
+	}
+
+	/**
+	* Computes the semiglobal alignment scores of two fragments, only on the cells whose diagonal i-j lies in [lo, hi].
+	* As in the full algorithm, only one row is stored at a time, and the first row and column are free (zero).
+	* The last column and the last row are then extended out of the band with gaps, in O(m+n), so that an overlap found in the band
+	* is also scored in the other direction, as the full algorithm does with the gaps that follow it along the border.
+	* The corners where the last column meets the first row, and the last row meets the first column, are computed too (see corner).
+	* Every value is the score of an actual alignment, so the scores are never higher than the full algorithm's.
+	*
+	* @param f 			Fragment, the first fragment.
+	* @param g 			Fragment, the second fragment.
+	* @param lo 		int, lowest diagonal of the band.
+	* @param hi 		int, highest diagonal of the band.
+	* @param result 	int[] of length 4 that receives {f->g, g->f, -1, -1} : the ends of alignments restricted to the band are not reported.
+	* @return 			long, number of cells computed.
+	*/
+	private long bandedScore(Fragment f, Fragment g, int lo, int hi, int[] result){
+		int m = f.length(), n = g.length(), gap_score = -2, mismatch_score = -1, match_score = 1;
+
+		int[][] scratch = SCRATCH.get();
+		if(scratch[1].length<n+1){
+			scratch[1] = new int[n+1];
+		}
+		int[] a = scratch[1];
+		for(int j=0; j<=n; j++){
+			a[j] = 0;
+		}
+
+		int temp_max_g_f = UNREACHABLE;
+		int temp_max_f_g = UNREACHABLE;
+		long cells = 0;
+
+		// Last column of the top right corner, and last row of the bottom left corner.
+		int rows = Math.min(CORNER, m), columns = Math.min(CORNER, n);
+		int[] top_right = scratch[2], bottom_left = scratch[3];
+		corner(f, g, 0, n-columns, rows, columns, top_right, null);
+		corner(f, g, m-rows, 0, rows, columns, null, bottom_left);
+		cells += 2L*rows*columns;
+
+		// Cell of the last column on the current row, reached from the free cell of row 0 or from the band by gaps down the column.
+		int last_column = 0;
+
+		// Band of the previous row, row 0 being entirely free.
+		int prev_lo = 0, prev_hi = n;
+
+		for(int i=1; i<=m; i++){
+			int j_lo = Math.max(1, i-hi), j_hi = Math.min(n, i-lo);
+			last_column += gap_score;
+			if(i<=rows){
+				last_column = Math.max(last_column, top_right[i]);
+			}
+			if(j_lo>j_hi){
+				temp_max_g_f = Math.max(temp_max_g_f, last_column);
+				prev_lo = 1;
+				prev_hi = 0;
+				continue;
+			}
+			byte b = f.bitAt(i-1);
+
+			// Value of the previous row at column j_lo-1, column 0 being free.
+			int old = (j_lo-1==0) ? 0 : (j_lo-1>=prev_lo && j_lo-1<=prev_hi) ? a[j_lo-1] : UNREACHABLE;
+			int left = (j_lo-1==0) ? 0 : UNREACHABLE;
+			for(int j=j_lo; j<=j_hi; j++){
+				int up = (j>=prev_lo && j<=prev_hi) ? a[j] : UNREACHABLE;
+				int p = (b == g.bitAt(j-1)) ? match_score:mismatch_score;
+				int cell = Math.max(up+gap_score, Math.max(old+p, left+gap_score));
+				old = up;
+				a[j] = cell;
+				left = cell;
+			}
+			cells += j_hi-j_lo+1;
+
+			if(j_hi==n){
+				last_column = Math.max(last_column, a[n]);
+			}
+			temp_max_g_f = Math.max(temp_max_g_f, last_column);
+			prev_lo = j_lo;
+			prev_hi = j_hi;
+		}
+
+		// Last row, reached from its free column 0 or from the band by gaps along the row. Its last cell is also the one of the last column.
+		int last_row = 0;
+		for(int j=1; j<=n; j++){
+			last_row += gap_score;
+			if(j<=columns){
+				last_row = Math.max(last_row, bottom_left[j]);
+			}
+			if(j>=prev_lo && j<=prev_hi){
+				last_row = Math.max(last_row, a[j]);
+			}
+			if(j==n){
+				last_row = Math.max(last_row, last_column);
+			}
+			temp_max_f_g = Math.max(temp_max_f_g, last_row);
+		}
+		temp_max_g_f = Math.max(temp_max_g_f, last_row);
+
+		result[0] = temp_max_f_g;
+		result[1] = temp_max_g_f;
+		// Better alignments may lie outside of the band, so where the alignments end isn't known.
+		result[2] = -1;
+		result[3] = -1;
+		return cells;
+	}
+
+	/**
+	* Computes a corner of the alignment matrix, the rectangle of the rows ]top, top+rows] and the columns ]left, left+columns].
+	* Its first row and column are free when they are the first row or column of the whole matrix, and unreachable otherwise,
+	* so that only alignments that start inside the corner are scored.
+	*
+	* @param f 				Fragment, the first fragment.
+	* @param g 				Fragment, the second fragment.
+	* @param top 			int, row before the first row of the corner.
+	* @param left 			int, column before the first column of the corner.
+	* @param rows 			int, number of rows of the corner, at most CORNER.
+	* @param columns 		int, number of columns of the corner, at most CORNER.
+	* @param last_column 	int[] that receives the last column of the corner, row top+i at index i. May be null.
+	* @param last_row 		int[] that receives the last row of the corner, column left+j at index j. May be null.
+	*/
+	private static void corner(Fragment f, Fragment g, int top, int left, int rows, int columns, int[] last_column, int[] last_row){
+		int gap_score = -2, mismatch_score = -1, match_score = 1;
+		int[] a = last_row==null ? new int[columns+1] : last_row;
+
+		a[0] = left==0 || top==0 ? 0 : UNREACHABLE;
+		for(int j=1; j<=columns; j++){
+			a[j] = top==0 ? 0 : UNREACHABLE;
+		}
+
+		for(int i=1; i<=rows; i++){
+			byte b = f.bitAt(top+i-1);
+			int old = a[0];
+			a[0] = left==0 ? 0 : UNREACHABLE;
+			for(int j=1; j<=columns; j++){
+				int temp = a[j];
+				int p = (b == g.bitAt(left+j-1)) ? match_score:mismatch_score;
+				a[j] = Math.max(a[j]+gap_score, Math.max(old+p, a[j-1]+gap_score));
+				old = temp;
+			}
+			if(last_column!=null){
+				last_column[i] = a[columns];
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/**
+* Overlap scorer that aligns one fragment against a batch of LANES other fragments at the same time.
+* The rows of the LANES alignments are interleaved, cell j of lane l being at index j*LANES+l, and a score profile built once per batch
+* replaces the comparison of nucleids : the row loop is a single loop without branches over the cells of every lane.
+* The loop is not turned into SIMD instructions by the JIT compiler, since each cell depends on the one LANES entries before it.
+* Putting the lanes in an inner loop of their own, which has no such dependency, measured slower.
+* Fragments of the batch may have different lengths : a lane simply keeps computing past the end of its fragment,
+* those extra cells never feed the cells the scores are read from.
+* The scores are the same as Fragment.semiGlobalAlignmentScore.
+* A batch only pays off once its lanes are filled : the fragments left over after the last full batch are aligned one at a time.
+*
+* @author 	HUYLENBROECK Florent
+*/
+class BatchOverlapScorer implements OverlapScorer{
+
+	public static final int LANES = 16;
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	* Computes the semiglobal alignment scores of two fragments.
+	*
+	* @param f 			Fragment, the first fragment.
+	* @param g 			Fragment, the second fragment.
+	* @param result 	int[] of length 4 that receives {f->g, g->f, end of f->g in g, end of g->f in f}, see Fragment.semiGlobalAlignmentScore.
+	*/
+	public void score(Fragment f, Fragment g, int[] result){
+		f.semiGlobalAlignmentScore(g, result);
+	}
+
+	/**
+	* Computes the semiglobal alignment scores of a fragment with a batch of fragments, LANES of them at a time.
+	* The last fragments, too few to fill the lanes, are aligned one at a time with Fragment.semiGlobalAlignmentScore.
+	*
+	* @param f 		Fragment, the first fragment.
+	* @param g 		Fragment[], the other fragments.
+	* @param from 	int, index in g of the first fragment to align with f.
+	* @param to 	int, index in g after the last fragment to align with f.
+	* @param results 	int[4][] that receives, at index k for every k in [from, to[, the same values as score(f, g[k]) in the same order.
+	*/
+	public void scoreBatch(Fragment f, Fragment[] g, int from, int to, int[][] results){
+		int start = from;
+		for(; start+LANES<=to; start+=LANES){
+			scoreLanes(f, g, start, LANES, results);
+		}
+		int[] result = SCRATCH.get().result;
+		for(; start<to; start++){
+			f.semiGlobalAlignmentScore(g[start], result);
+			for(int x=0; x<4; x++){
+				results[x][start] = result[x];
+			}
+		}
+	}
+
+	/**
+	* Aligns a fragment with up to LANES fragments, one per lane.
+	*
+	* @param f 		Fragment, the first fragment.
+	* @param g 		Fragment[], the other fragments.
+	* @param start 	int, index in g of the fragment of the first lane.
+	* @param lanes 	int, number of lanes used.
+	* @param results 	int[4][] that receives the scores and the ends of the alignments.
+	*/
+	private void scoreLanes(Fragment f, Fragment[] g, int start, int lanes, int[][] results){
+		int m = f.length(), gap_score = -2, mismatch_score = -1, match_score = 1;
+
+		int n_max = 0;
+		for(int l=0; l<lanes; l++){
+			n_max = Math.max(n_max, g[start+l].length());
+		}
+
+		Scratch scratch = SCRATCH.get();
+		scratch.ensure(m, n_max);
+		byte[] bases_f = scratch.bases_f;
+		byte[] bases_g = scratch.bases_g;
+		int[] a = scratch.row;
+		int[] prev = scratch.prev_row;
+		int[][] profile = scratch.profile;
+		f.unpack(bases_f);
+
+		// Score profile : profile[b][(j-1)*LANES+l] is the score of nucleid b against nucleid j-1 of the fragment of lane l.
+		// Lanes past the end of their fragment, or unused, get mismatches.
+		for(int l=0; l<LANES; l++){
+			int n = l<lanes ? g[start+l].length() : 0;
+			if(l<lanes){
+				g[start+l].unpack(bases_g);
+			}
+			for(int j=0; j<n_max; j++){
+				for(int b=0; b<4; b++){
+					profile[b][j*LANES+l] = (j<n && bases_g[j]==b) ? match_score:mismatch_score;
+				}
+			}
+		}
+
+		for(int k=0; k<(n_max+1)*LANES; k++){
+			a[k] = 0;
+		}
+
+		int[] max_g_f = scratch.max_g_f;
+		int[] end_value_g_f = scratch.end_value_g_f;
+		int[] end_g_f = scratch.end_g_f;
+		for(int l=0; l<LANES; l++){
+			int n = l<lanes ? g[start+l].length() : 0;
+			max_g_f[l] = m*n*gap_score;
+			end_value_g_f[l] = 0;
+			end_g_f[l] = 0;
+		}
+
+		// Two rows are swapped at each step. Cell k of the row only depends on cell k-LANES of the same row, the one of the same lane.
+		for(int i=1; i<=m; i++){
+			int[] p = profile[bases_f[i-1]];
+			int[] tmp = prev;
+			prev = a;
+			a = tmp;
+			for(int l=0; l<LANES; l++){
+				a[l] = 0;
+			}
+			for(int k=LANES; k<(n_max+1)*LANES; k++){
+				a[k] = Math.max(prev[k]+gap_score, Math.max(prev[k-LANES]+p[k-LANES], a[k-LANES]+gap_score));
+			}
+			for(int l=0; l<lanes; l++){
+				int cell = a[g[start+l].length()*LANES+l];
+				max_g_f[l] = Math.max(max_g_f[l], cell);
+				if(cell>=end_value_g_f[l]){
+					end_value_g_f[l] = cell;
+					end_g_f[l] = i;
+				}
+			}
+		}
+
+		for(int l=0; l<lanes; l++){
+			int n = g[start+l].length();
+			int max_f_g = m*n*gap_score;
+			int end_value_f_g = 0, end_f_g = 0;
+			for(int j=1; j<=n; j++){
+				max_f_g = Math.max(max_f_g, a[j*LANES+l]);
+				if(a[j*LANES+l]>=end_value_f_g){
+					end_value_f_g = a[j*LANES+l];
+					end_f_g = j;
+				}
+			}
+			results[0][start+l] = max_f_g;
+			results[1][start+l] = max_g_f[l];
+			results[2][start+l] = end_f_g;
+			results[3][start+l] = end_g_f[l];
+		}
+	}
+
+	/**
+	* Per-thread buffers of the batch kernel. Buffers only grow.
+	*
+	* @author 	HUYLENBROECK Florent
+	*/
+	private static class Scratch{
+
+		private byte[] bases_f = new byte[0];
+		private byte[] bases_g = new byte[0];
+		private int[] row = new int[LANES];
+		private int[] prev_row = new int[LANES];
+		private int[][] profile = new int[4][0];
+		private int[] max_g_f = new int[LANES];
+		private int[] end_value_g_f = new int[LANES];
+		private int[] end_g_f = new int[LANES];
+		private int[] result = new int[4];
+
+		/**
+		* Grows the buffers to align a fragment of length m with fragments of length at most n.
+		*
+		* @param m 	int, length of the first fragment.
+		* @param n 	int, length of the longest fragment of the batch.
+		*/
+		private void ensure(int m, int n){
+			if(bases_f.length<m){
+				bases_f = new byte[m];
+			}
+			if(bases_g.length<n){
+				bases_g = new byte[n];
+				row = new int[(n+1)*LANES];
+				prev_row = new int[(n+1)*LANES];
+				profile = new int[4][n*LANES];
+			}
+		}
+	}
+}
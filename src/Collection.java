@@ -45,6 +45,15 @@ class Collection{
 		return ret;
 	}
 
+	/**
+	* Getter for the fragments of the collection.
+	*
+	* @return 	Fragment[], every fragment of the collection.
+	*/
+	public Fragment[] getFragments(){
+		return collection;
+	}
+
 	/**
 	* Gets a certain fragment in the collection.
 	*
@@ -0,0 +1,290 @@
+import java.util.*;
+
+/**
+* Chooses the overlap scorer used to compute the overlap graph of a collection.
+* Fragments are split in size classes by length (up to 256, 512, ... nucleids), and a pair of fragments belongs to the class of its longest fragment.
+* For every size class, a short calibration runs each engine on a sample of pairs of the collection, and measures its cost per matrix cell.
+* The cheapest engine of each class is kept, among the engines that give the same scores as the full dynamic programming on the whole sample.
+* The expected cost of the overlap phase is then estimated from the number of cells of each class. Decisions are logged, and can be overridden.
+* Only the engines that are exact by construction (AUTO_ENGINES) are calibrated, so the automatic choice never changes the contig :
+* the sample check only guards against a broken engine. The banded engine can't be proven exact on a sample, since most sampled pairs
+* share no seed and fall back to the full dynamic programming, so it is only used when asked for.
+*
+* Engines :
+* full 	Fragment.semiGlobalAlignmentScore, one pair at a time.
+* batch 	BatchOverlapScorer, one fragment against LANES fragments at a time.
+* banded 	BandedOverlapScorer, seed-and-extend in a band around the seeded diagonals.
+*
+* @author 	HUYLENBROECK Florent
+*/
+class EngineSelector{
+
+	public static final String[] ENGINES = {"full", "batch", "banded"};
+	public static final String[] AUTO_ENGINES = {"full", "batch"};
+	public static final String DEFAULT_ENGINE = "batch";
+
+	/**
+	* Engine of the collections too small to calibrate. The batch kernel doesn't pay for its compilation on so few pairs.
+	*/
+	public static final String SMALL_ENGINE = "full";
+
+	private static final int MIN_CLASS_LOG = 8;
+	private static final int CLASSES = 8;
+
+	/**
+	* Share of the pairs of the collection the calibration is allowed to align, per engine.
+	*/
+	private static final double CALIBRATION_SHARE = 0.02;
+	private static final int CALIBRATION_ROWS = 4;
+	private static final int CALIBRATION_ROUNDS = 4;
+
+	/**
+	* Creates an engine given its name.
+	*
+	* @param name 	String, name of the engine.
+	* @return 		OverlapScorer, the engine, or null if the name is unknown.
+	*/
+	public static OverlapScorer create(String name){
+		switch(name){
+			case "full" : return (f, g, result) -> f.semiGlobalAlignmentScore(g, result);
+			case "batch" : return new BatchOverlapScorer();
+			case "banded" : return new BandedOverlapScorer();
+			default : return null;
+		}
+	}
+
+	/**
+	* Gives the size class of a fragment.
+	*
+	* @param length 	int, length of the fragment.
+	* @return 			int, the size class, fragments of class c being at most 2^(c+MIN_CLASS_LOG) long.
+	*/
+	private static int sizeClass(int length){
+		int log = 32-Integer.numberOfLeadingZeros(Math.max(1, length-1));
+		return Math.min(CLASSES-1, Math.max(0, log-MIN_CLASS_LOG));
+	}
+
+	/**
+	* Gives the label of a size class, for logging purpose.
+	*
+	* @param c 	int, the size class.
+	* @return 	String describing the lengths of the class.
+	*/
+	private static String classLabel(int c){
+		return c==CLASSES-1 ? "> "+(1<<(c+MIN_CLASS_LOG-1)) : "<= "+(1<<(c+MIN_CLASS_LOG));
+	}
+
+	/**
+	* Chooses the overlap scorer of a collection, and logs the decision.
+	*
+	* @param collection 	Collection whose overlap graph is computed.
+	* @param override 		String, name of the engine to use for every pair, or "auto" to calibrate.
+	* @return 				OverlapScorer to use for the overlap graph.
+	*/
+	public static OverlapScorer select(Collection collection, String override){
+		System.out.println("\t   Phase 4 engine : windowed traceback from the overlap phase alignment ends, full matrix on fallback.");
+		if(!override.equals("auto")){
+			System.out.println("\t   Phase 2 engine : "+override+" (override).");
+			return create(override);
+		}
+
+		Fragment[] fragments = collection.getFragments();
+		ArrayList<ArrayList<Fragment>> pools = new ArrayList<ArrayList<Fragment>>();
+		long[] sums = new long[CLASSES];
+		long[] squares = new long[CLASSES];
+		for(int c=0; c<CLASSES; c++){
+			pools.add(new ArrayList<Fragment>());
+		}
+		for(Fragment f:fragments){
+			int c = sizeClass(f.length());
+			pools.get(c).add(f);
+			sums[c] += f.length();
+			squares[c] += (long)f.length()*f.length();
+		}
+
+		// Cells the full dynamic programming computes for the pairs of each class.
+		double[] cells = new double[CLASSES];
+		double smaller = 0;
+		for(int c=0; c<CLASSES; c++){
+			cells[c] = smaller*sums[c]+((double)sums[c]*sums[c]-squares[c])/2;
+			smaller += sums[c];
+		}
+
+		long pairs = (long)fragments.length*(fragments.length-1)/2;
+		int budget = (int)Math.min(CALIBRATION_ROWS*BatchOverlapScorer.LANES, pairs*CALIBRATION_SHARE);
+		if(budget<BatchOverlapScorer.LANES){
+			System.out.println("\t   Phase 2 engine : "+SMALL_ENGINE+" (collection too small to calibrate).");
+			return create(SMALL_ENGINE);
+		}
+
+		System.out.println("\t   Calibrating phase 2 engines on "+Runtime.getRuntime().availableProcessors()+" core(s), single-threaded overlap phase.");
+		OverlapScorer[] chosen = new OverlapScorer[CLASSES];
+		HashMap<String, OverlapScorer> instances = new HashMap<String, OverlapScorer>();
+		double estimate = 0;
+		Random random = new Random(fragments.length);
+
+		// First calibration only gets every engine compiled, and is discarded.
+		int largest = 0;
+		for(int c=0; c<CLASSES; c++){
+			largest = pools.get(c).size()>pools.get(largest).size() ? c : largest;
+		}
+		calibrate(pools.get(largest), budget, random);
+
+		for(int c=0; c<CLASSES; c++){
+			if(pools.get(c).size()<2){
+				continue;
+			}
+			String best = DEFAULT_ENGINE;
+			double best_cost = Double.MAX_VALUE;
+			double[] costs = calibrate(pools.get(c), budget, random);
+			for(int e=0; e<AUTO_ENGINES.length; e++){
+				if(costs[e]<best_cost){
+					best_cost = costs[e];
+					best = AUTO_ENGINES[e];
+				}
+			}
+			chosen[c] = instances.computeIfAbsent(best, EngineSelector::create);
+			double seconds = best_cost*cells[c]/1e9;
+			estimate += seconds;
+
+			String log = "\t   Phase 2 engine for fragments of length "+classLabel(c)+" : "+best+" (";
+			for(int e=0; e<AUTO_ENGINES.length; e++){
+				log += AUTO_ENGINES[e]+" "+(costs[e]==Double.MAX_VALUE ? "inexact" : String.format(Locale.ROOT, "%.3f ns/cell", costs[e]))+(e<AUTO_ENGINES.length-1 ? ", " : "");
+			}
+			System.out.println(log+"), estimated "+String.format(Locale.ROOT, "%.1f", seconds)+" s.");
+		}
+		System.out.println("\t   Estimated phase 2 time : "+String.format(Locale.ROOT, "%.1f", estimate)+" s.");
+
+		if(instances.size()==1){
+			return instances.values().iterator().next();
+		}
+		return new RoutedScorer(chosen);
+	}
+
+	/**
+	* Measures the cost of every engine on a sample of pairs of a size class.
+	* Every engine first runs the whole sample once to check its scores, then the sample is timed over a few rounds.
+	*
+	* @param pool 		ArrayList<Fragment>, the fragments of the size class.
+	* @param budget 	int, number of pairs to align per engine.
+	* @param random 	Random used to pick the sample.
+	* @return 			double[], cost in nanoseconds per cell of each engine of AUTO_ENGINES, Double.MAX_VALUE if its scores differ from the full dynamic programming.
+	*/
+	private static double[] calibrate(ArrayList<Fragment> pool, int budget, Random random){
+		int row_length = Math.min(BatchOverlapScorer.LANES, pool.size()-1);
+		int rows = Math.max(1, budget/row_length);
+		Fragment[] f = new Fragment[rows];
+		Fragment[][] g = new Fragment[rows][row_length];
+		long cells = 0;
+		for(int r=0; r<rows; r++){
+			f[r] = pool.get(random.nextInt(pool.size()));
+			for(int k=0; k<row_length; k++){
+				g[r][k] = pool.get(random.nextInt(pool.size()));
+				cells += (long)f[r].length()*g[r][k].length();
+			}
+		}
+
+		int[][] reference_f_g = new int[rows][row_length], reference_g_f = new int[rows][row_length];
+		int[] result = new int[4];
+		for(int r=0; r<rows; r++){
+			for(int k=0; k<row_length; k++){
+				f[r].semiGlobalAlignmentScore(g[r][k], result);
+				reference_f_g[r][k] = result[0];
+				reference_g_f[r][k] = result[1];
+			}
+		}
+
+		double[] costs = new double[AUTO_ENGINES.length];
+		boolean[] exact = new boolean[AUTO_ENGINES.length];
+		OverlapScorer[] engines = new OverlapScorer[AUTO_ENGINES.length];
+		int[][] results = new int[4][row_length];
+		for(int e=0; e<AUTO_ENGINES.length; e++){
+			engines[e] = create(AUTO_ENGINES[e]);
+			exact[e] = true;
+			costs[e] = Double.MAX_VALUE;
+			for(int r=0; r<rows; r++){
+				engines[e].scoreBatch(f[r], g[r], 0, row_length, results);
+				exact[e] &= Arrays.equals(results[0], reference_f_g[r]) && Arrays.equals(results[1], reference_g_f[r]);
+			}
+		}
+
+		// Engines take turns, so that they all get compiled, and the best round of each is kept.
+		for(int round=0; round<CALIBRATION_ROUNDS; round++){
+			for(int e=0; e<AUTO_ENGINES.length; e++){
+				if(!exact[e]){
+					continue;
+				}
+				long start = System.nanoTime();
+				for(int r=0; r<rows; r++){
+					engines[e].scoreBatch(f[r], g[r], 0, row_length, results);
+				}
+				costs[e] = Math.min(costs[e], (double)(System.nanoTime()-start)/cells);
+			}
+		}
+		return costs;
+	}
+
+	/**
+	* Overlap scorer that routes every pair to the engine chosen for its size class.
+	*
+	* @author 	HUYLENBROECK Florent
+	*/
+	private static class RoutedScorer implements OverlapScorer{
+
+		private OverlapScorer[] engines;
+
+		/**
+		* @param engines 	OverlapScorer[], the engine of each size class. Classes without fragments may be null.
+		*/
+		public RoutedScorer(OverlapScorer[] engines){
+			this.engines = engines;
+		}
+
+		/**
+		* Gives the engine of a pair of fragments.
+		*
+		* @param f 	Fragment, the first fragment.
+		* @param g 	Fragment, the second fragment.
+		* @return 	OverlapScorer of the size class of the longest fragment.
+		*/
+		private OverlapScorer engine(Fragment f, Fragment g){
+			OverlapScorer engine = engines[sizeClass(Math.max(f.length(), g.length()))];
+			return engine==null ? OverlapScorer.BATCH : engine;
+		}
+
+		public void score(Fragment f, Fragment g, int[] result){
+			engine(f, g).score(f, g, result);
+		}
+
+		/**
+		* Scores a batch of fragments. The fragments routed to each engine are gathered, so that every engine gets a single batch.
+		*/
+		public void scoreBatch(Fragment f, Fragment[] g, int from, int to, int[][] results){
+			Fragment[] gathered = new Fragment[to-from];
+			int[] indexes = new int[to-from];
+			int[][] gathered_results = new int[4][to-from];
+			boolean[] done = new boolean[to-from];
+
+			for(int k=from; k<to; k++){
+				if(done[k-from]){
+					continue;
+				}
+				OverlapScorer engine = engine(f, g[k]);
+				int count = 0;
+				for(int l=k; l<to; l++){
+					if(!done[l-from] && engine(f, g[l])==engine){
+						gathered[count] = g[l];
+						indexes[count++] = l;
+						done[l-from] = true;
+					}
+				}
+				engine.scoreBatch(f, gathered, 0, count, gathered_results);
+				for(int l=0; l<count; l++){
+					for(int x=0; x<4; x++){
+						results[x][indexes[l]] = gathered_results[x][l];
+					}
+				}
+			}
+		}
+	}
+}
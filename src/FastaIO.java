@@ -42,28 +42,30 @@ class FastaIO{
 	}
 
 	/**
-	* Writes a .fasta file given an input sequence
+	* Writes a .fasta file given an input sequence. The packed sequence is unpacked once, and written 80 nucleids per line.
 	*
 	* @param path 				String, path to the .fasta file.
-	* @param sequence 			String, the sequence to be written.
+	* @param sequence 			Fragment, the sequence to be written.
 	* @param collection_number 	String, the collection number from which the fragments have been read.
+	* @throws IOException 		if the file can't be written.
 	*/
-	public static void writeFasta(String path, String sequence, String collection_number){
-		String fasta = "> Groupe-6B Collection "+collection_number+" longueur "+sequence.length()+"\n";
-		for(int i=1; i<=sequence.length(); i++){
-			fasta += sequence.charAt(i-1);
-			if(i%80==0){
-				fasta+="\n";
+	public static void writeFasta(String path, Fragment sequence, String collection_number) throws IOException{
+		int length = sequence.length();
+		byte[] bases = new byte[length];
+		sequence.unpack(bases);
+		char[] line = new char[80];
+		try(BufferedWriter fastaWriter = new BufferedWriter(new FileWriter(path))){
+			fastaWriter.write("> Groupe-6B Collection "+collection_number+" longueur "+length+"\n");
+			for(int start=0; start<length; start+=80){
+				int end = Math.min(length, start+80);
+				for(int i=start; i<end; i++){
+					line[i-start] = Fragment.twoBitsToChar(bases[i]);
+				}
+				fastaWriter.write(line, 0, end-start);
+				if(end%80==0){
+					fastaWriter.write('\n');
+				}
 			}
 		}
-		try{
-			FileWriter fastaWriter = new FileWriter(path);
-			fastaWriter.write(fasta);
-			fastaWriter.close();
-		} catch(Exception e) {
-			e.printStackTrace();
-		}
-
-		
 	}
-}
\ No newline at end of file
+}
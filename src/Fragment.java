@@ -47,6 +47,15 @@ class Fragment{
 		}
 	}
 
+	/**
+	* @param fragment 	byte[], nucleids already packed 4 per byte, as returned by getFragment(). Unused bits of the last byte must be zero.
+	* @param length 	int, number of nucleids in the sequence.
+	*/
+	public Fragment(byte[] fragment, int length){
+		this.fragment = fragment;
+		this.length = length;
+	}
+
 	/**
 	* Getter for the fragment's length value.
 	*
@@ -98,11 +107,13 @@ class Fragment{
 	* @return 	String representing the fragment.
 	*/
 	public String toString(){
-		String ret="";
+		byte[] bases = new byte[length];
+		unpack(bases);
+		StringBuilder ret = new StringBuilder(length);
 		for(int i=0; i<length; i++){
-			ret+=nucleidAt(i);
+			ret.append(twoBitsToChar(bases[i]));
 		}
-		return ret;
+		return ret.toString();
 	}
 
 	/**
@@ -154,68 +165,283 @@ class Fragment{
 			return 'x';
 	}
 
+	/**
+	* Writes the two-bits representation of every nucleid of the fragment into an array, one nucleid per byte.
+	*
+	* @param bases 	byte[], destination array. Must hold at least length entries.
+	*/
+	public void unpack(byte[] bases){
+		for(int i=0; i<length; i++){
+			bases[i] = (byte)((fragment[i>>2]>>(6-2*(i&3)))&3);
+		}
+	}
+
+	/**
+	* Computes the inverted and complemented fragment, 32 nucleids at a time.
+	* Packed in a 64 bits word, a sequence is inverted by reversing the order of its pairs of bits, and complemented by flipping every bit,
+	* since A (00) <-> T (11) and C (01) <-> G (10). The unused nucleids at the end of the last word end up at the start of the result,
+	* which is then shifted left to drop them.
+	*
+	* @return 	Fragment, the inverted and complemented fragment.
+	*/
+	public Fragment reverseComplement(){
+		int words = (fragment.length+7)/8;
+		long[] w = new long[words];
+		for(int i=0; i<fragment.length; i++){
+			w[i>>3] |= (fragment[i]&0xFFL)<<(56-8*(i&7));
+		}
+
+		// Reverses words order, and pairs order within each word, then complements.
+		long[] rc = new long[words];
+		for(int i=0; i<words; i++){
+			long x = Long.reverse(w[i]);
+			x = ((x>>>1)&0x5555555555555555L) | ((x&0x5555555555555555L)<<1);
+			rc[words-1-i] = ~x;
+		}
+
+		// Drops the leading nucleids that used to be padding, clearing the new padding at the end.
+		int shift = 2*(words*32-length);
+		if(shift>0){
+			for(int i=0; i<words; i++){
+				rc[i] = (rc[i]<<shift) | (i+1<words ? rc[i+1]>>>(64-shift) : 0);
+			}
+		}
+
+		byte[] ic = new byte[fragment.length];
+		for(int i=0; i<ic.length; i++){
+			ic[i] = (byte)(rc[i>>3]>>>(56-8*(i&7)));
+		}
+		return new Fragment(ic, length);
+	}
+
 	/**
 	* Computes the semiglobal alignment score of the fragment object with another fragment. This algorithm is optimized to only store one row at a time instead of 
 	* the whole matrix. 
 	*
 	* @param f2 	Fragment to align with the fragment object.
-	* @return 		int, semiglobal alignment score.
+	* @return 		int[], semiglobal alignment scores and where the best alignments end {f->f2, f2->f, end of f->f2 in f2, end of f2->f in f}.
 	*/
 	public int[] semiGlobalAlignmentScore(Fragment f2){
+		int[] result = new int[4];
+		semiGlobalAlignmentScore(f2, result);
+		return result;
+	}
+
+	/**
+	* Computes the semiglobal alignment score of the fragment object with another fragment, without allocating.
+	* The row and the unpacked nucleids are kept in a per-thread scratch arena.
+	* Also gives where the best alignments end, which is the entry point of the traceback in the alignment matrix :
+	* the column of the last row for f->f2, the row of the last column for f2->f. Ties go to the highest index, and column (row) 0 counts with a score of 0.
+	*
+	* @param f2 		Fragment to align with the fragment object.
+	* @param result 	int[] of length 4 that receives {f->f2, f2->f, end of f->f2 in f2, end of f2->f in f}.
+	*/
+	public void semiGlobalAlignmentScore(Fragment f2, int[] result){
 
-		int n = f2.length(), gap_score = -2, mismatch_score = -1, match_score = 1, treshold = 3;
+		int n = f2.length(), gap_score = -2, mismatch_score = -1, match_score = 1;
 
-		int[] a = new int[n+1];
+		ScratchArena arena = ScratchArena.get(length, n);
+		byte[] bases_f = arena.bases_f;
+		byte[] bases_g = arena.bases_g;
+		this.unpack(bases_f);
+		f2.unpack(bases_g);
+
+		int temp_max_g_f = length*n*gap_score;
+		int temp_max_f_g = length*n*gap_score;
+		int end_value_g_f = 0, end_g_f = 0;
+		int[] a = arena.int_row;
 
 		for(int j = 0; j<=n; j++){
 			a[j]= 0; 
 		}
 
-		int temp_max_g_f = length*n*gap_score;
-
 		for(int i = 1; i<=length; i++){
 			int old = a[0];
+			byte b = bases_f[i-1];
 			a[0] = 0; 
 			for(int j = 1; j<=n; j++){
 				int temp = a[j];
-				int p = (this.bitAt(i-1) == f2.bitAt(j-1)) ? match_score:mismatch_score; // -1 to shift the entries in the sims tab
+				int p = (b == bases_g[j-1]) ? match_score:mismatch_score;
 				a[j] =  Math.max(a[j]+gap_score, Math.max(old+p, a[j-1]+gap_score));
 				old = temp;
 			}
 			temp_max_g_f = Math.max(temp_max_g_f, a[n]);
+			if(a[n]>=end_value_g_f){
+				end_value_g_f = a[n];
+				end_g_f = i;
+			}
 		}
 
-		int temp_max_f_g = length*n*gap_score;
-
-		for(int i=1; i<a.length; i++){
-			temp_max_f_g = Math.max(temp_max_f_g, a[i]);
+		int end_value_f_g = 0, end_f_g = 0;
+		for(int j=1; j<=n; j++){
+			temp_max_f_g = Math.max(temp_max_f_g, a[j]);
+			if(a[j]>=end_value_f_g){
+				end_value_f_g = a[j];
+				end_f_g = j;
+			}
 		}
 
-		return new int[] {temp_max_f_g, temp_max_g_f};
+		result[0] = temp_max_f_g;
+		result[1] = temp_max_g_f;
+		result[2] = end_f_g;
+		result[3] = end_g_f;
 	}
 
-	public int[][] semiGlobalAlignmentMatrix(Fragment f2){
+	/**
+	* Computes the whole semiglobal alignment matrix of the fragment object with another fragment.
+	* The matrix is stored row by row in a flat array, each row being f2.length()+1 cells wide.
+	* The array belongs to a per-thread scratch arena : it is only valid until the next call on the same thread, and may be larger than the matrix.
+	* Matrices larger than the arena keeps are allocated for the call only.
+	*
+	* @param f2 	Fragment to align with the fragment object.
+	* @return 		int[], the alignment matrix. Cell (i, j) is at index i*(f2.length()+1)+j.
+	*/
+	public int[] semiGlobalAlignmentMatrix(Fragment f2){
 
-		int n = f2.length(), gap_score = -2, mismatch_score = -1, match_score = 1, treshold = 3;
+		int n = f2.length(), gap_score = -2, mismatch_score = -1, match_score = 1;
+		int width = n+1;
 
-		int[][] a = new int[length+1][n+1];
+		ScratchArena arena = ScratchArena.get(length, n);
+		int[] a = arena.matrix((long)(length+1)*width);
+		byte[] bases_f = arena.bases_f;
+		byte[] bases_g = arena.bases_g;
+		this.unpack(bases_f);
+		f2.unpack(bases_g);
 
 		for(int i = 0; i<=length; i++){
-			a[i][0] = 0;
+			a[i*width] = 0;
 		}
 
 		for(int j = 0; j<=n; j++){
-			a[0][j]= 0;
+			a[j]= 0;
 		}
 
 		for(int i = 1; i<=length; i++){
+			int row = i*width;
+			byte b = bases_f[i-1];
 			for(int j = 1; j<=n; j++){
 
-				int p = (this.bitAt(i-1) == f2.bitAt(j-1)) ? match_score:mismatch_score;
-				a[i][j] =  Math.max(a[i-1][j]+gap_score, Math.max(a[i-1][j-1]+p, a[i][j-1]+gap_score));
+				int p = (b == bases_g[j-1]) ? match_score:mismatch_score;
+				a[row+j] =  Math.max(a[row-width+j]+gap_score, Math.max(a[row-width+j-1]+p, a[row+j-1]+gap_score));
+			}
+		}
+
+		return a;
+	}
+
+	/**
+	* Computes the semiglobal alignment matrix of the fragment object with another fragment, restricted to a window :
+	* the rows from start to the end of the fragment object, and the columns up to end.
+	* The window is stored row by row in a flat array, each row being end+1 cells wide, row 0 of the window being row start of the whole matrix.
+	* A cell never depends on the cells on its right, so the cells of the window hold the same values as in the whole matrix :
+	* the rows above the window are still computed, up to column end, but only one of them is kept at a time, in row 0 of the window.
+	* The array belongs to the same per-thread scratch arena as semiGlobalAlignmentMatrix.
+	*
+	* @param f2 	Fragment to align with the fragment object.
+	* @param start 	int, first row of the window.
+	* @param end 	int, last column of the window.
+	* @return 		int[], the window. Cell (i, j) of the whole matrix is at index (i-start)*(end+1)+j.
+	*/
+	public int[] semiGlobalAlignmentWindow(Fragment f2, int start, int end){
+
+		int gap_score = -2, mismatch_score = -1, match_score = 1;
+		int width = end+1, rows = length-start+1;
+
+		ScratchArena arena = ScratchArena.get(length, f2.length());
+		int[] a = arena.matrix((long)rows*width);
+		byte[] bases_f = arena.bases_f;
+		byte[] bases_g = arena.bases_g;
+		this.unpack(bases_f);
+		f2.unpack(bases_g);
+
+		for(int j = 0; j<width; j++){
+			a[j] = 0;
+		}
+
+		for(int i = 1; i<=start; i++){
+			int old = a[0];
+			byte b = bases_f[i-1];
+			for(int j = 1; j<width; j++){
+				int temp = a[j];
+				int p = (b == bases_g[j-1]) ? match_score:mismatch_score;
+				a[j] =  Math.max(a[j]+gap_score, Math.max(old+p, a[j-1]+gap_score));
+				old = temp;
+			}
+		}
+
+		for(int r = 1; r<rows; r++){
+			int row = r*width;
+			byte b = bases_f[start+r-1];
+			a[row] = 0;
+			for(int j = 1; j<width; j++){
+
+				int p = (b == bases_g[j-1]) ? match_score:mismatch_score;
+				a[row+j] =  Math.max(a[row-width+j]+gap_score, Math.max(a[row-width+j-1]+p, a[row+j-1]+gap_score));
 			}
 		}
 
 		return a;
 	}
+
+	/**
+	* Per-thread buffers reused by the alignment kernels, so that aligning every pair of fragments doesn't allocate.
+	* Buffers only grow, to the size of the longest fragments aligned so far on the thread.
+	*
+	* @author 	HUYLENBROECK Florent
+	*/
+	private static class ScratchArena{
+
+		private static final ThreadLocal<ScratchArena> ARENA = ThreadLocal.withInitial(ScratchArena::new);
+
+		/**
+		* Largest matrix kept by an arena, in cells (16 MB). Long-lived worker threads, as the daemon's, would otherwise each keep the largest matrix they ever computed.
+		*/
+		private static final int MAX_KEPT_MATRIX_CELLS = 1<<22;
+
+		private byte[] bases_f = new byte[0];
+		private byte[] bases_g = new byte[0];
+		private int[] int_row = new int[1];
+		private int[] matrix = new int[0];
+
+		/**
+		* Gives the arena of the current thread, grown to align fragments of the given lengths.
+		*
+		* @param m 	int, length of the first fragment.
+		* @param n 	int, length of the second fragment.
+		* @return 	ScratchArena of the current thread.
+		*/
+		private static ScratchArena get(int m, int n){
+			ScratchArena arena = ARENA.get();
+			if(arena.bases_f.length<m){
+				arena.bases_f = new byte[m];
+			}
+			if(arena.bases_g.length<n){
+				arena.bases_g = new byte[n];
+			}
+			if(arena.int_row.length<n+1){
+				arena.int_row = new int[n+1];
+			}
+			return arena;
+		}
+
+		/**
+		* Gives a matrix buffer, growing the kept one if needed. Buffers larger than MAX_KEPT_MATRIX_CELLS are not kept.
+		*
+		* @param cells 	long, number of cells the matrix must hold.
+		* @return 		int[], the buffer, at least cells long.
+		*/
+		private int[] matrix(long cells){
+			if(cells>Integer.MAX_VALUE-8){
+				throw new OutOfMemoryError("Alignment matrix too large : "+cells+" cells.");
+			}
+			if(matrix.length>=cells){
+				return matrix;
+			}
+			if(cells>MAX_KEPT_MATRIX_CELLS){
+				return new int[(int)cells];
+			}
+			matrix = new int[(int)cells];
+			return matrix;
+		}
+	}
 }
@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 
 /**
@@ -7,14 +8,19 @@ import java.util.*;
 */
 class FragmentAssembler{
 
-	private static Collection collection;
+	/**
+	* Number of timed phases of the assembly pipeline : overlap graph, hamiltonian path, alignment, consensus, inversion and complementation.
+	*/
+	static final int PHASES = 5;
 
 	public static void main(String[] args){
 		String path_in = "";
 		String path_out = "";
 		String path_out_ic = "";
+		long memory_budget = 0;
+		String engine = "auto";
 
-		if(args.length==5){
+		if(args.length>=5){
 			path_in = args[0];
 			if(args[1].equals("-out")){
 				path_out=args[2];
@@ -30,54 +36,158 @@ class FragmentAssembler{
 				System.out.println("Error while parsing command. Expected second flag to be \"-out-ic\". Exiting.");
 				System.exit(1);
 			}
+			for(int i=5; i<args.length; i++){
+				if(args[i].equals("-mem") && i+1<args.length){
+					memory_budget=Long.parseLong(args[++i])*1024*1024;
+				}
+				else if(args[i].equals("-engine") && i+1<args.length){
+					engine=args[++i];
+					if(!engine.equals("auto") && EngineSelector.create(engine)==null){
+						System.out.println("Error while parsing command. Unknown engine \""+engine+"\", expected auto, "+String.join(", ", EngineSelector.ENGINES)+". Exiting.");
+						System.exit(1);
+					}
+				}
+				else{
+					System.out.println("Error while parsing command. Unknown flag \""+args[i]+"\". Exiting.");
+					System.exit(1);
+				}
+			}
 			System.out.println("FragmentAssembler - HUYLENBROECK Florent - Group 6B");
 			System.out.println("\t1. Opening file \""+path_in+"\".");
-			collection = new Collection(FastaIO.openFasta(path_in));
+			Collection collection = new Collection(FastaIO.openFasta(path_in));
 			String collection_n = path_in.replaceAll("[^0-9S]", "");
-			System.out.println("\t2. Generating overlap graph.");
-			int[][] overlap_graph = getOverlapGraph();
-			System.out.println("\t3. Finding a greedy hamiltonian path amongst overlap graph.");
-			int[] path = greedyHamiltonianPath(overlap_graph);
-			System.out.println("\t4. Aligning fragments.");
-			AlignmentLinkedList alignment = new AlignmentLinkedList(collection, path);
-			System.out.println("\t5. Building consensus contig using majority vote.");
-			String contig = alignment.getContig();
-			String contig_ic = invertAndComplement(contig);
-			System.out.println("\t6. Saving contig to \""+path_out+"\".");
-			FastaIO.writeFasta(path_out, contig, collection_n);
-			System.out.println("\t7. Inverting and complementing contig.");
-			System.out.println("\t8. Saving inverted and complemented contig to \""+path_out_ic+"\".");
-			FastaIO.writeFasta(path_out_ic, contig_ic, collection_n);
+			OverlapScorer scorer = EngineSelector.select(collection, engine);
+			Fragment[] contigs = null;
+			try{
+				contigs = assemble(collection, scorer, memory_budget, new long[PHASES]);
+			} catch(IOException e) {
+				System.out.println("Error while writing the overlap graph to the disk. Exiting.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			try{
+				System.out.println("\t7. Saving contig to \""+path_out+"\".");
+				FastaIO.writeFasta(path_out, contigs[0], collection_n);
+				System.out.println("\t8. Saving inverted and complemented contig to \""+path_out_ic+"\".");
+				FastaIO.writeFasta(path_out_ic, contigs[1], collection_n);
+			} catch(IOException e) {
+				System.out.println("Error while writing the contig to the disk. Exiting.");
+				e.printStackTrace();
+				System.exit(1);
+			}
 			System.out.println("Done.");
 		}
 		else{
 			System.out.println("Error while parsing command. Incorrect number of argument found.");
 			System.out.println("Please format you command as follows :");
-			System.out.println("java -jar FragmentAssembler.jar <file.fasta> -out <out.fasta> -out-ic <out_ic.fasta>");
+			System.out.println("java -jar FragmentAssembler.jar <file.fasta> -out <out.fasta> -out-ic <out_ic.fasta> [-mem <budget_MB>] [-engine <auto|full|batch|banded>]");
 			System.exit(1);
 		}		
 	}
 
+	/**
+	* Runs the assembly pipeline on a collection, from the overlap graph to the inverted and complemented contig.
+	*
+	* @param collection 	Collection to assemble.
+	* @param scorer 		OverlapScorer used to compute the overlap graph.
+	* @param memory_budget 	long, memory budget in bytes for an out-of-core overlap graph. 0 lets the assembler choose.
+	* @param phase_nanos 	long[] of length PHASES that receives the time spent in each phase, in nanoseconds.
+	* @return 				Fragment[], the contig and the inverted and complemented contig.
+	*/
+	static Fragment[] assemble(Collection collection, OverlapScorer scorer, long memory_budget, long[] phase_nanos) throws IOException{
+		long start = System.nanoTime();
+		if(memory_budget==0 && denseGraphFits(collection)){
+			System.out.println("\t2. Generating overlap graph.");
+			int[][] ends = new int[collection.length()][collection.length()];
+			int[][] overlap_graph = getOverlapGraph(collection, scorer, ends);
+			phase_nanos[0] = System.nanoTime()-start;
+			return assemble(collection, overlap_graph, ends, phase_nanos);
+		}
+
+		if(memory_budget==0){
+			memory_budget = Runtime.getRuntime().maxMemory()/4;
+		}
+		TiledOverlapGraph overlap_graph = new TiledOverlapGraph(collection, scorer, memory_budget, null);
+		System.out.println("\t2. Generating overlap graph on the disk (tiles of "+overlap_graph.tileSize()+" fragments).");
+		phase_nanos[0] = System.nanoTime()-start;
+		start = System.nanoTime();
+		System.out.println("\t3. Finding a greedy hamiltonian path amongst overlap graph.");
+		int[][] overlaps = new int[collection.length()][];
+		int[] path;
+		try{
+			path = greedyHamiltonianPath(collection, overlap_graph.iterator(), overlaps);
+		} finally {
+			overlap_graph.close();
+		}
+		phase_nanos[1] = System.nanoTime()-start;
+		return assemble(collection, path, overlaps, phase_nanos);
+	}
+
+	/**
+	* Runs the assembly pipeline on a collection whose overlap graph is already computed.
+	*
+	* @param collection 	Collection to assemble.
+	* @param overlap_graph 	int[][], adjacency matrix of the overlap graph of the collection.
+	* @param ends 			int[][], where the alignment of each edge ends, as given by getOverlapGraph.
+	* @param phase_nanos 	long[] of length PHASES that receives the time spent in each phase, in nanoseconds.
+	* @return 				Fragment[], the contig and the inverted and complemented contig.
+	*/
+	static Fragment[] assemble(Collection collection, int[][] overlap_graph, int[][] ends, long[] phase_nanos){
+		long start = System.nanoTime();
+		System.out.println("\t3. Finding a greedy hamiltonian path amongst overlap graph.");
+		int[][] overlaps = new int[collection.length()][];
+		int[] path = greedyHamiltonianPath(collection, overlap_graph, ends, overlaps);
+		phase_nanos[1] = System.nanoTime()-start;
+		return assemble(collection, path, overlaps, phase_nanos);
+	}
+
+	/**
+	* Runs the end of the assembly pipeline on a collection, given the order of its fragments.
+	*
+	* @param collection 	Collection to assemble.
+	* @param path 			int[], a greedy hamiltonian path amongst the overlap graph of the collection.
+	* @param overlaps 		int[][], the alignment of each edge of the path found by the overlap phase, see AlignmentLinkedList.
+	* @param phase_nanos 	long[] of length PHASES that receives the time spent in each phase, in nanoseconds.
+	* @return 				Fragment[], the contig and the inverted and complemented contig.
+	*/
+	private static Fragment[] assemble(Collection collection, int[] path, int[][] overlaps, long[] phase_nanos){
+		long start = System.nanoTime();
+		System.out.println("\t4. Aligning fragments.");
+		AlignmentLinkedList alignment = new AlignmentLinkedList(collection, path, overlaps);
+		phase_nanos[2] = System.nanoTime()-start;
+		start = System.nanoTime();
+		System.out.println("\t5. Building consensus contig using majority vote.");
+		Fragment contig = alignment.getContig();
+		phase_nanos[3] = System.nanoTime()-start;
+		start = System.nanoTime();
+		System.out.println("\t6. Inverting and complementing contig.");
+		Fragment contig_ic = invertAndComplement(contig);
+		phase_nanos[4] = System.nanoTime()-start;
+		return new Fragment[] {contig, contig_ic};
+	}
+
 	/**
 	* Inverts and complements a contig.
 	* A <-> T
 	* C <-> G
 	*
-	* @param contig 	String, the contig to invert and complement.
-	* @return 			String, the inverted and complemented contig.
+	* @param contig 	Fragment, the contig to invert and complement.
+	* @return 			Fragment, the inverted and complemented contig.
 	*/
-	private static String invertAndComplement(String contig){
-		String ic = "";
-		for(int i=contig.length()-1; i>=0; i--){
-			switch(contig.charAt(i)){
-				case 'a' : ic+='t'; break;
-				case 'c' : ic+='g'; break;
-				case 'g' : ic+='c'; break;
-				case 't' : ic+='a'; break;
-				default :;
-			}
-		}
-		return ic;
+	private static Fragment invertAndComplement(Fragment contig){
+		return contig.reverseComplement();
+	}
+
+	/**
+	* Tells if the dense overlap graph, and the sorted list of its edges, are expected to fit in the heap.
+	*
+	* @param collection 	Collection whose overlap graph is computed.
+	* @return 	boolean, true if the overlap graph can be computed in memory.
+	*/
+	static boolean denseGraphFits(Collection collection){
+		long length = collection.length();
+		// Two ints per matrix entry (score and alignment end), plus an int[4] (about 32 bytes with its reference) per edge once sorted.
+		return length*length*(4+4+32) < Runtime.getRuntime().maxMemory()/2;
 	}
 
 	/**
@@ -85,22 +195,28 @@ class FragmentAssembler{
 	* Vertices are the pairs of indexes and edges are the value in the array at each pair of index.
 	* The matrix being symetrical, only the upper part of the matrix is computed, and mirrored to fill the rest of the matrix.
 	* Also, the diagonal is filled with zeroes and ignored during the computation.
+	* Where the best alignment of each edge ends is kept in a second matrix, so that the alignment phase can reuse it.
 	*
-	* @return 	int[][], adjacency matrix of the overlap graph.
+	* @param collection 	Collection whose overlap graph is computed.
+	* @param scorer 		OverlapScorer used to compute the semiglobal alignment scores.
+	* @param ends 			int[][] that receives, for each edge i->j, where the best alignment ends in j (see Fragment.semiGlobalAlignmentScore).
+	* @return 				int[][], adjacency matrix of the overlap graph.
 	*/
-	private static int[][] getOverlapGraph(){
+	static int[][] getOverlapGraph(Collection collection, OverlapScorer scorer, int[][] ends){
 
 		int length = collection.length();
 
 		int[][] graph = new int[length][length];
+		Fragment[] fragments = collection.getFragments();
+		int[] column = new int[length];
+		int[] column_ends = new int[length];
 
+		// Row i is scored against every following fragment at once, g->f scores are mirrored in column i.
 		for(int i =0; i<length; i++){
-			for(int j=i; j<length; j++){
-				if(i!=j){
-					int[] tmp_score = collection.getFragment(i).semiGlobalAlignmentScore(collection.getFragment(j));
-					graph[i][j]=tmp_score[0];
-					graph[j][i]=tmp_score[1];
-				}
+			scorer.scoreBatch(fragments[i], fragments, i+1, length, new int[][] {graph[i], column, ends[i], column_ends});
+			for(int j=i+1; j<length; j++){
+				graph[j][i]=column[j];
+				ends[j][i]=column_ends[j];
 			}
 		}
 
@@ -111,40 +227,63 @@ class FragmentAssembler{
 	* Finds a hamiltonian path in a graph given it's adjacency matrix using greedy heuristic.
 	* Algorithm is described at slide 25-26 of the project's presentation slides.
 	*
-	* @param graph 	int[][], adjacency matrix of the graph.
-	* @return 		int[][], an array containing the selected vertices, if the form [f, g]
+	* @param collection 	Collection whose fragments are the vertices of the graph.
+	* @param graph 			int[][], adjacency matrix of the graph.
+	* @param ends 			int[][], where the alignment of each edge ends.
+	* @param overlaps 		int[][] that receives, at index i, the {score, end} of the edge entering the i-th vertex of the path.
+	* @return 				int[][], an array containing the selected vertices, if the form [f, g]
 	*/
-	private static int[] greedyHamiltonianPath(int[][] graph){
+	private static int[] greedyHamiltonianPath(Collection collection, int[][] graph, int[][] ends, int[][] overlaps){
 
 		int length = collection.length();
 
-		byte[] in = new byte[length], out = new byte[length]; 
-		ArrayList<int[]> sets = new ArrayList<int[]>();
 		ArrayList<int[]> vertices = new ArrayList<int[]>();
 
 		for(int i=0; i<length; i++){
-			sets.add(new int[] {i});
-
 			for(int j=0; j<length; j++){
 				if(i!=j){
-					vertices.add(new int[] {graph[i][j], i, j});
+					vertices.add(new int[] {graph[i][j], i, j, ends[i][j]});
 				}
 			}
 		}
 
 		vertices.sort(Comparator.comparing(a -> -a[0]));
 
-		int[][] greedy_hamiltionian_path_vertice = new int[length-1][2];
+		return greedyHamiltonianPath(collection, vertices.iterator(), overlaps);
+	}
+
+	/**
+	* Finds a hamiltonian path given the edges of a graph sorted by decreasing score, using greedy heuristic.
+	* Edges are consumed one at a time, so they can be streamed from the disk.
+	*
+	* @param collection 	Collection whose fragments are the vertices of the graph.
+	* @param vertices 		Iterator<int[]> over the edges of the graph, each of the form {score, f, g, end}, by decreasing score.
+	* @param overlaps 		int[][] that receives, at index i, the {score, end} of the edge entering the i-th vertex of the path.
+	* @return 				int[], the selected vertices in path order.
+	*/
+	private static int[] greedyHamiltonianPath(Collection collection, Iterator<int[]> vertices, int[][] overlaps){
+
+		int length = collection.length();
+
+		byte[] in = new byte[length], out = new byte[length]; 
+		ArrayList<int[]> sets = new ArrayList<int[]>();
+
+		for(int i=0; i<length; i++){
+			sets.add(new int[] {i});
+		}
+
+		int[][] greedy_hamiltionian_path_vertice = new int[length-1][4];
 		int greedy_index = 0;
 
-		for(int[] vertex:vertices){
+		while(vertices.hasNext()){
+			int[] vertex = vertices.next();
 			int f = vertex[1]; 
 			int g = vertex[2]; 
 			if(in[g]==0 && out[f]==0){
 				int[] setF = findSet(sets, f); 
 				int[] setG = findSet(sets, g); 
 				if(!setF.equals(setG)){
-					greedy_hamiltionian_path_vertice[greedy_index] = new int[] {f, g};
+					greedy_hamiltionian_path_vertice[greedy_index] = new int[] {f, g, vertex[0], vertex[3]};
 					greedy_index++;
 					in[g]=1;
 					out[f]=1;
@@ -172,6 +311,7 @@ class FragmentAssembler{
 			for(int[] vertex : greedy_hamiltionian_path_vertice){
 				if(vertex[0]==greedy_hamiltionian_path[i-1]){
 					greedy_hamiltionian_path[i]=vertex[1];
+					overlaps[i]=new int[] {vertex[2], vertex[3]};
 					break;
 				}
 			}
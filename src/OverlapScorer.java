@@ -0,0 +1,41 @@
+/**
+* Interface of the strategies used to compute the semiglobal alignment scores of two fragments in the overlap graph.
+*
+* @author 	HUYLENBROECK Florent
+*/
+interface OverlapScorer{
+
+	/**
+	* Batch kernel, see BatchOverlapScorer. Gives the same scores as the full dynamic programming of Fragment.semiGlobalAlignmentScore.
+	*/
+	OverlapScorer BATCH = new BatchOverlapScorer();
+
+	/**
+	* Computes the semiglobal alignment scores of two fragments.
+	*
+	* @param f 			Fragment, the first fragment.
+	* @param g 			Fragment, the second fragment.
+	* @param result 	int[] of length 4 that receives {f->g, g->f, end of f->g in g, end of g->f in f}, see Fragment.semiGlobalAlignmentScore.
+	* 					Ends are only given when the scores are the ones of the full dynamic programming, they are -1 otherwise.
+	*/
+	void score(Fragment f, Fragment g, int[] result);
+
+	/**
+	* Computes the semiglobal alignment scores of a fragment with a batch of fragments. Scores one pair at a time unless overridden.
+	*
+	* @param f 		Fragment, the first fragment.
+	* @param g 		Fragment[], the other fragments.
+	* @param from 	int, index in g of the first fragment to align with f.
+	* @param to 	int, index in g after the last fragment to align with f.
+	* @param results 	int[4][] that receives, at index k for every k in [from, to[, the same values as score(f, g[k]) in the same order.
+	*/
+	default void scoreBatch(Fragment f, Fragment[] g, int from, int to, int[][] results){
+		int[] result = new int[4];
+		for(int k=from; k<to; k++){
+			score(f, g[k], result);
+			for(int x=0; x<4; x++){
+				results[x][k] = result[x];
+			}
+		}
+	}
+}
@@ -0,0 +1,423 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+
+/**
+* End-to-end regression harness of the FragmentAssembler pipeline.
+* Each collection of ressources/Collections is assembled, the time spent in every phase and the peak heap usage are measured,
+* and the contig is aligned against the matching cible to compute its identity and its coverage.
+* Results are compared to the baselines stored in a properties file, and the run fails if speed, memory or accuracy regresses past a tolerance,
+* or if a result has no baseline. Timings only mean something on the machine that measured them, so baselines are stored per host,
+* in ressources/baselines/<host>.properties, which is not versioned : on a new machine, run once with -update (ant regression -Dargs=-update)
+* on the revision to compare against, then without it on the change. Refresh them with -update after every change that affects performance.
+*
+* Usage : java RegressionHarness [-update] [-collections 1,2] [-baselines file] [-time-tolerance 0.5] [-accuracy-tolerance 0.01]
+*
+* @author 	HUYLENBROECK Florent
+*/
+class RegressionHarness{
+
+	private static final String COLLECTIONS_DIR = "ressources/Collections/";
+	private static final String BASELINES_DIR = "ressources/baselines/";
+	private static final String[] PHASE_NAMES = {"parse", "overlap", "path", "align", "consensus", "ic"};
+
+	/**
+	* Absolute slack in milliseconds allowed on a phase, so that phases that take a few milliseconds don't fail on noise.
+	*/
+	private static final long TIME_SLACK_MS = 100;
+
+	/**
+	* Number of diagonals added on each side of the band of the accuracy alignment, for the insertions and deletions between two anchors.
+	*/
+	private static final int BAND_MARGIN = 256;
+
+	private static final int UNREACHABLE = Integer.MIN_VALUE/2;
+
+	public static void main(String[] args){
+		boolean update = false;
+		String[] collections = {"1", "2"};
+		String path_baselines = BASELINES_DIR+hostName()+".properties";
+		double time_tolerance = 0.5;
+		double accuracy_tolerance = 0.01;
+
+		for(int i=0; i<args.length; i++){
+			switch(args[i]){
+				case "-update" : update = true; break;
+				case "-collections" : collections = args[++i].split(","); break;
+				case "-baselines" : path_baselines = args[++i]; break;
+				case "-time-tolerance" : time_tolerance = Double.parseDouble(args[++i]); break;
+				case "-accuracy-tolerance" : accuracy_tolerance = Double.parseDouble(args[++i]); break;
+				default :
+					System.out.println("Error while parsing command. Unknown flag \""+args[i]+"\". Exiting.");
+					System.exit(1);
+			}
+		}
+
+		Properties baselines = new Properties();
+		File baselines_file = new File(path_baselines);
+		if(baselines_file.exists()){
+			try(FileReader reader = new FileReader(baselines_file)){
+				baselines.load(reader);
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		else if(!update){
+			System.out.println("No baselines found at \""+path_baselines+"\", run with -update on this machine first.");
+		}
+
+		int regressions = 0;
+		for(String c:collections){
+			Properties results = run(c);
+			if(update){
+				baselines.putAll(results);
+			}
+			else{
+				regressions += compare(results, baselines, time_tolerance, accuracy_tolerance);
+			}
+		}
+
+		if(update){
+			if(baselines_file.getParentFile()!=null){
+				baselines_file.getParentFile().mkdirs();
+			}
+			try(FileWriter writer = new FileWriter(baselines_file)){
+				baselines.store(writer, "FragmentAssembler regression baselines");
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.out.println("Baselines saved to \""+path_baselines+"\".");
+		}
+		else if(regressions>0){
+			System.out.println(regressions+" regression(s) found.");
+			System.exit(1);
+		}
+		else{
+			System.out.println("No regression found.");
+		}
+	}
+
+	/**
+	* Assembles a collection and measures it.
+	*
+	* @param c 	String, the collection number.
+	* @return 	Properties holding the results, keyed "<c>S.<metric>".
+	*/
+	private static Properties run(String c){
+		String prefix = c+"S.";
+		Properties results = new Properties();
+		System.out.println("Collection "+c+"S");
+
+		resetPeakUsage();
+		long start = System.nanoTime();
+		Collection collection = new Collection(FastaIO.openFasta(COLLECTIONS_DIR+"Collection"+c+"S.fasta"));
+		long[] phase_nanos = new long[FragmentAssembler.PHASES+1];
+		phase_nanos[0] = System.nanoTime()-start;
+
+		long[] pipeline_nanos = new long[FragmentAssembler.PHASES];
+		Fragment[] contigs = null;
+		try{
+			start = System.nanoTime();
+			OverlapScorer scorer = EngineSelector.select(collection, "auto");
+			long calibration = System.nanoTime()-start;
+			contigs = FragmentAssembler.assemble(collection, scorer, 0, pipeline_nanos);
+			pipeline_nanos[0] += calibration;
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.arraycopy(pipeline_nanos, 0, phase_nanos, 1, pipeline_nanos.length);
+		long peak = peakUsage();
+
+		long bases = 0;
+		for(int i=0; i<collection.length(); i++){
+			bases += collection.getFragment(i).length();
+		}
+
+		long total = 0;
+		for(int p=0; p<phase_nanos.length; p++){
+			long ms = phase_nanos[p]/1000000;
+			total += ms;
+			results.setProperty(prefix+"time."+PHASE_NAMES[p], Long.toString(ms));
+			System.out.println("\t"+PHASE_NAMES[p]+" : "+ms+" ms ("+throughput(bases, phase_nanos[p])+" nucleids/s)");
+		}
+		results.setProperty(prefix+"time.total", Long.toString(total));
+		results.setProperty(prefix+"peak_mb", Long.toString(peak/(1024*1024)));
+		System.out.println("\ttotal : "+total+" ms, peak heap : "+peak/(1024*1024)+" MB");
+
+		String cible = FastaIO.openFasta(COLLECTIONS_DIR+"cible"+c+"S.fasta").get(0);
+		String contig = contigs[0].toString(), contig_ic = contigs[1].toString();
+		contig = sharedKmers(contig, cible)>=sharedKmers(contig_ic, cible) ? contig : contig_ic;
+		double[] accuracy = accuracy(contig, cible);
+		results.setProperty(prefix+"identity", String.format(Locale.ROOT, "%.4f", accuracy[0]));
+		results.setProperty(prefix+"coverage", String.format(Locale.ROOT, "%.4f", accuracy[1]));
+		System.out.println("\tcontig length : "+contig.length()+", cible length : "+cible.length());
+		System.out.println(String.format(Locale.ROOT, "\tidentity : %.4f, coverage : %.4f", accuracy[0], accuracy[1]));
+
+		return results;
+	}
+
+	/**
+	* Compares the results of a collection with the baselines. A result without baseline counts as a regression.
+	*
+	* @param results 				Properties, results of the run.
+	* @param baselines 				Properties, stored baselines.
+	* @param time_tolerance 		double, allowed relative slowdown of a phase, or growth of the peak heap.
+	* @param accuracy_tolerance 	double, allowed absolute loss of identity or coverage.
+	* @return 						int, number of regressions found.
+	*/
+	private static int compare(Properties results, Properties baselines, double time_tolerance, double accuracy_tolerance){
+		int regressions = 0;
+		for(String key:results.stringPropertyNames()){
+			String baseline = baselines.getProperty(key);
+			if(baseline==null){
+				System.out.println("\tREGRESSION "+key+" : "+results.getProperty(key)+" (no baseline)");
+				regressions++;
+				continue;
+			}
+			double expected = Double.parseDouble(baseline);
+			double actual = Double.parseDouble(results.getProperty(key));
+			boolean regressed;
+			if(key.endsWith("identity") || key.endsWith("coverage")){
+				regressed = actual < expected-accuracy_tolerance;
+			}
+			else if(key.endsWith("peak_mb")){
+				regressed = actual > expected*(1+time_tolerance);
+			}
+			else{
+				regressed = actual > expected*(1+time_tolerance)+TIME_SLACK_MS;
+			}
+			if(regressed){
+				System.out.println("\tREGRESSION "+key+" : "+results.getProperty(key)+" (baseline "+baseline+")");
+				regressions++;
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	* Aligns a contig against its cible and computes identity and coverage.
+	* Alignment is semi-global on both sequences (end gaps are free), with the scores used by the assembler, and only one row is stored at a time.
+	* Contig and cible are colinear, so only the cells of a band that follows the k-mers they share are computed (see band),
+	* the others being unreachable : the time is linear in their length instead of quadratic.
+	* Every cell carries the number of matches, the number of columns and the cible start of the best alignment ending there.
+	*
+	* @param contig 	String, the assembled contig.
+	* @param cible 		String, the reference sequence.
+	* @return 			double[], {identity, coverage}. Identity is matches over alignment columns, coverage is the aligned span of the cible over its length.
+	*/
+	static double[] accuracy(String contig, String cible){
+		int m = contig.length(), n = cible.length(), gap_score = -2, mismatch_score = -1, match_score = 1;
+		char[] seq_f = contig.toCharArray(), seq_g = cible.toCharArray();
+		int[][] band = band(contig, cible);
+
+		// Column 0 is free and never written, row 0 is free on the whole row.
+		int[] score = new int[n+1], matches = new int[n+1], columns = new int[n+1], starts = new int[n+1];
+		for(int j=0; j<=n; j++){
+			starts[j] = j;
+		}
+
+		int best = Integer.MIN_VALUE, best_matches = 0, best_columns = 1, best_start = 0, best_end = 0;
+		int prev_lo = 0, prev_hi = n;
+
+		for(int i=1; i<=m; i++){
+			int j_lo = band[0][i], j_hi = band[1][i];
+			if(j_lo>j_hi){
+				prev_lo = 1;
+				prev_hi = 0;
+				continue;
+			}
+			char c = seq_f[i-1];
+			boolean old_in = j_lo-1==0 || (j_lo-1>=prev_lo && j_lo-1<=prev_hi);
+			int old_score = old_in ? score[j_lo-1] : UNREACHABLE, old_matches = matches[j_lo-1], old_columns = columns[j_lo-1], old_start = starts[j_lo-1];
+			if(j_lo-1>0){
+				score[j_lo-1] = UNREACHABLE;
+			}
+			for(int j=j_lo; j<=j_hi; j++){
+				if(j<prev_lo || j>prev_hi){
+					score[j] = UNREACHABLE;
+				}
+				int tmp_score = score[j], tmp_matches = matches[j], tmp_columns = columns[j], tmp_start = starts[j];
+				boolean match = c==seq_g[j-1];
+				int diag = old_score+(match ? match_score : mismatch_score);
+				int up = score[j]+gap_score;
+				int left = score[j-1]+gap_score;
+				if(diag>=up && diag>=left){
+					score[j] = diag; matches[j] = old_matches+(match ? 1 : 0); columns[j] = old_columns+1; starts[j] = old_start;
+				}
+				else if(up>=left){
+					score[j] = up; columns[j]++;
+				}
+				else{
+					score[j] = left; matches[j] = matches[j-1]; columns[j] = columns[j-1]+1; starts[j] = starts[j-1];
+				}
+				old_score = tmp_score; old_matches = tmp_matches; old_columns = tmp_columns; old_start = tmp_start;
+			}
+			if(j_hi==n && score[n]>best){
+				best = score[n]; best_matches = matches[n]; best_columns = columns[n]; best_start = starts[n]; best_end = n;
+			}
+			prev_lo = j_lo;
+			prev_hi = j_hi;
+		}
+
+		for(int j=Math.max(1, prev_lo); j<=prev_hi; j++){
+			if(score[j]>best){
+				best = score[j]; best_matches = matches[j]; best_columns = columns[j]; best_start = starts[j]; best_end = j;
+			}
+		}
+
+		return new double[] {(double)best_matches/Math.max(1, best_columns), (double)(best_end-best_start)/Math.max(1, n)};
+	}
+
+	/**
+	* Computes the band of the alignment of a contig against its cible.
+	* The k-mers found once in the cible and also in the contig are anchors, and the longest chain of anchors that goes forward
+	* in both sequences is kept. The band of a row covers the diagonals of the anchors of the chain around it, widened by BAND_MARGIN.
+	* Without any anchor, the band is the whole matrix.
+	*
+	* @param contig 	String, the assembled contig.
+	* @param cible 		String, the reference sequence.
+	* @return 			int[][], {first columns, last columns} of the band of every row, row 0 being unused.
+	*/
+	private static int[][] band(String contig, String cible){
+		int m = contig.length(), n = cible.length(), k = 16;
+		int[][] band = new int[2][m+1];
+
+		HashMap<String, Integer> positions = new HashMap<String, Integer>();
+		for(int p=0; p+k<=n; p++){
+			positions.merge(cible.substring(p, p+k), p, (first, other) -> -1);
+		}
+		int[] anchor_f = new int[Math.max(0, m-k+1)], anchor_g = new int[anchor_f.length];
+		int anchors = 0;
+		for(int i=0; i+k<=m; i++){
+			Integer p = positions.get(contig.substring(i, i+k));
+			if(p!=null && p>=0){
+				anchor_f[anchors] = i;
+				anchor_g[anchors] = p;
+				anchors++;
+			}
+		}
+
+		if(anchors==0){
+			for(int i=1; i<=m; i++){
+				band[0][i] = 1;
+				band[1][i] = n;
+			}
+			return band;
+		}
+
+		// Longest chain of anchors increasing in the cible, anchors being already increasing in the contig.
+		int[] tails = new int[anchors], previous = new int[anchors];
+		int length = 0;
+		for(int x=0; x<anchors; x++){
+			int low = 0, high = length;
+			while(low<high){
+				int mid = (low+high)>>>1;
+				if(anchor_g[tails[mid]]<anchor_g[x]){
+					low = mid+1;
+				}
+				else{
+					high = mid;
+				}
+			}
+			previous[x] = low>0 ? tails[low-1] : -1;
+			tails[low] = x;
+			if(low==length){
+				length++;
+			}
+		}
+		int[] chain = new int[length];
+		for(int x=length-1, anchor=tails[length-1]; x>=0; x--, anchor=previous[anchor]){
+			chain[x] = anchor;
+		}
+
+		// Anchor at (i, p) is the cell (i+1, p+1), on the diagonal p-i.
+		int next = 0;
+		for(int i=1; i<=m; i++){
+			while(next<length && anchor_f[chain[next]]+1<i){
+				next++;
+			}
+			int after = chain[Math.min(next, length-1)], before = chain[Math.max(next-1, 0)];
+			int diagonal_before = anchor_g[before]-anchor_f[before], diagonal_after = anchor_g[after]-anchor_f[after];
+			band[0][i] = Math.max(1, i+Math.min(diagonal_before, diagonal_after)-BAND_MARGIN);
+			band[1][i] = Math.min(n, i+Math.max(diagonal_before, diagonal_after)+BAND_MARGIN);
+		}
+		return band;
+	}
+
+	/**
+	* Counts the k-mers of a sequence that are also found in a reference. Used to pick the strand of the contig matching the cible.
+	*
+	* @param seq 		String, the sequence.
+	* @param reference 	String, the reference.
+	* @return 			int, number of shared 16-mers.
+	*/
+	private static int sharedKmers(String seq, String reference){
+		int k = 16;
+		HashSet<String> kmers = new HashSet<String>();
+		for(int i=0; i+k<=reference.length(); i+=k){
+			kmers.add(reference.substring(i, i+k));
+		}
+		int shared = 0;
+		for(int i=0; i+k<=seq.length(); i++){
+			if(kmers.contains(seq.substring(i, i+k))){
+				shared++;
+			}
+		}
+		return shared;
+	}
+
+	/**
+	* Gives the name of the machine, which names its baselines file.
+	*
+	* @return 	String, the host name, "localhost" if it can't be resolved.
+	*/
+	private static String hostName(){
+		try{
+			return InetAddress.getLocalHost().getHostName();
+		} catch(IOException e) {
+			return "localhost";
+		}
+	}
+
+	/**
+	* Gives the throughput of a phase.
+	*
+	* @param bases 	long, number of nucleids in the collection.
+	* @param nanos 	long, time spent in the phase.
+	* @return 		long, nucleids processed per second.
+	*/
+	private static long throughput(long bases, long nanos){
+		return nanos==0 ? 0 : bases*1000000000L/nanos;
+	}
+
+	/**
+	* Resets the peak usage of every heap memory pool.
+	*/
+	private static void resetPeakUsage(){
+		System.gc();
+		for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()){
+			if(pool.getType()==MemoryType.HEAP){
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	* Gives the peak heap usage since the last reset, as the sum of the peak usage of every heap memory pool.
+	*
+	* @return 	long, peak heap usage in bytes.
+	*/
+	private static long peakUsage(){
+		long peak = 0;
+		for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()){
+			if(pool.getType()==MemoryType.HEAP){
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
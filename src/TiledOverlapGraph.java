@@ -0,0 +1,391 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+* Class that describes an out-of-core overlap graph.
+* Instead of storing the whole adjacency matrix in the heap, the matrix is computed by square tiles of at most tile_size*tile_size entries.
+* Each tile is turned into a run of edges sorted by decreasing score, and written to a file on the disk.
+* The edges of the whole graph are then streamed in decreasing score order by merging the runs (external merge sort).
+* At most MAX_FAN_IN runs are merged at a time : while there are more, groups of runs are merged into longer runs in a new file.
+* Runs are written through one reusable buffer and read through a small window each, so the heap and the number of open files
+* don't grow with the number of runs : only the disk does.
+* Edges that share the same score are given by increasing f, then increasing g, same as the stable sort used on the dense matrix.
+* An edge is an int[] of the form {score, f, g, end}, end being where the best alignment of f->g ends in g (see Fragment.semiGlobalAlignmentScore).
+*
+* @author 	HUYLENBROECK Florent
+*/
+class TiledOverlapGraph implements Iterable<int[]>{
+
+	/**
+	* Size of one edge in the run file, in bytes (score, f, g, end).
+	*/
+	private static final int EDGE_BYTES = 16;
+
+	/**
+	* Largest tile side allowed. Local indexes of a tile must fit on 13 bits to be packed in a sort key.
+	*/
+	private static final int MAX_TILE_SIZE = 1<<13;
+
+	/**
+	* Largest number of runs merged at a time.
+	*/
+	private static final int MAX_FAN_IN = 64;
+
+	/**
+	* Size in bytes of the buffer runs are written through, and of the window each run is read through.
+	*/
+	private static final int WRITE_BUFFER_BYTES = EDGE_BYTES<<16;
+	private static final int READ_WINDOW_BYTES = EDGE_BYTES<<11;
+
+	private Collection collection;
+	private OverlapScorer scorer;
+	private int tile_size;
+	private int blocks;
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long[] run_offsets;
+	private long[] run_lengths;
+	private ByteBuffer write_buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+	/**
+	* @param collection 	Collection whose overlap graph is computed.
+	* @param scorer 		OverlapScorer used to compute the semiglobal alignment scores.
+	* @param memory_budget 	long, the heap memory in bytes a tile computation is allowed to use. Controls the tile size.
+	* @param directory 		File, directory where the run file is created. Uses the default temporary directory if null.
+	*/
+	public TiledOverlapGraph(Collection collection, OverlapScorer scorer, long memory_budget, File directory) throws IOException{
+		this.collection = collection;
+		this.scorer = scorer;
+
+		// Two tiles of sort keys (8 bytes each) and of alignment ends (4 bytes each) are held at the same time, one for each direction of an overlap.
+		tile_size = (int)Math.sqrt(memory_budget/24.0);
+		tile_size = Math.max(1, Math.min(MAX_TILE_SIZE, Math.min(tile_size, collection.length())));
+		blocks = (collection.length()+tile_size-1)/tile_size;
+
+		file = File.createTempFile("overlap", ".tiles", directory);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+
+		// Run of tile (a, b) holds every edge f->g with f in block a and g in block b, except self loops.
+		run_offsets = new long[blocks*blocks];
+		run_lengths = new long[blocks*blocks];
+		long offset = 0;
+		for(int a=0; a<blocks; a++){
+			for(int b=0; b<blocks; b++){
+				int run = a*blocks+b;
+				run_offsets[run] = offset;
+				run_lengths[run] = blockSize(a)*blockSize(b)-(a==b ? blockSize(a) : 0);
+				offset += run_lengths[run]*EDGE_BYTES;
+			}
+		}
+
+		// The file is deleted by close(), which is called here if the graph can't be built.
+		try{
+			computeTiles();
+			mergeRuns();
+		} catch(IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	* Getter for the tile size.
+	*
+	* @return 	int, the number of rows (and columns) of a full tile.
+	*/
+	public int tileSize(){
+		return tile_size;
+	}
+
+	/**
+	* Gives the number of fragments in a given block of rows or columns.
+	*
+	* @param block 	int, index of the block.
+	* @return 		int, number of fragments in the block.
+	*/
+	private int blockSize(int block){
+		return Math.min(tile_size, collection.length()-block*tile_size);
+	}
+
+	/**
+	* Computes every tile of the overlap graph. Only tiles on and above the diagonal are computed,
+	* since a single alignment gives the score of both f->g and g->f. The symetrical tile is filled at the same time.
+	*/
+	private void computeTiles() throws IOException{
+		long[] upper = new long[tile_size*tile_size];
+		long[] lower = new long[tile_size*tile_size];
+		int[] upper_ends = new int[tile_size*tile_size];
+		int[] lower_ends = new int[tile_size*tile_size];
+		Fragment[] fragments = collection.getFragments();
+		int[][] results = new int[4][fragments.length];
+
+		for(int a=0; a<blocks; a++){
+			for(int b=a; b<blocks; b++){
+				int upper_length = 0;
+				int lower_length = 0;
+				int row_start = a*tile_size;
+				int col_start = b*tile_size;
+
+				for(int i=row_start; i<row_start+blockSize(a); i++){
+					int from = Math.max(col_start, i+1), to = col_start+blockSize(b);
+					scorer.scoreBatch(fragments[i], fragments, from, to, results);
+					for(int j=from; j<to; j++){
+						upper[upper_length++] = sortKey(results[0][j], i-row_start, j-col_start);
+						lower[lower_length++] = sortKey(results[1][j], j-col_start, i-row_start);
+						upper_ends[(i-row_start)*tile_size+j-col_start] = results[2][j];
+						(a==b ? upper_ends : lower_ends)[(j-col_start)*tile_size+i-row_start] = results[3][j];
+					}
+				}
+
+				if(a==b){
+					// Diagonal tile holds both directions in a single run.
+					System.arraycopy(lower, 0, upper, upper_length, lower_length);
+					writeRun(a, a, upper, upper_ends, upper_length+lower_length);
+				}
+				else{
+					writeRun(a, b, upper, upper_ends, upper_length);
+					writeRun(b, a, lower, lower_ends, lower_length);
+				}
+			}
+		}
+	}
+
+	/**
+	* Packs an edge of a tile in a long, so that sorting keys by increasing value sorts edges by decreasing score, then increasing f, then increasing g.
+	*
+	* @param score 	int, the score of the edge.
+	* @param f 		int, index of f within its block.
+	* @param g 		int, index of g within its block.
+	* @return 		long, the sort key.
+	*/
+	private static long sortKey(int score, int f, int g){
+		return (((long)Integer.MAX_VALUE-score)<<26) | ((long)f<<13) | g;
+	}
+
+	/**
+	* Sorts the keys of a tile and writes them as a run in the file.
+	*
+	* @param a 		int, block of f.
+	* @param b 		int, block of g.
+	* @param keys 	long[], the sort keys of the tile.
+	* @param ends 	int[], the alignment ends of the tile, the one of local edge f->g being at index f*tile_size+g.
+	* @param length int, number of keys used in the array.
+	*/
+	private void writeRun(int a, int b, long[] keys, int[] ends, int length) throws IOException{
+		int run = a*blocks+b;
+		Arrays.sort(keys, 0, length);
+		long position = run_offsets[run];
+		for(int k=0; k<length; k++){
+			int f = (int)((keys[k]>>>13)&(MAX_TILE_SIZE-1)), g = (int)(keys[k]&(MAX_TILE_SIZE-1));
+			position = put(channel, position, (int)(Integer.MAX_VALUE-(keys[k]>>>26)), a*tile_size+f, b*tile_size+g, ends[f*tile_size+g]);
+		}
+		flush(channel, position);
+	}
+
+	/**
+	* Adds an edge to the write buffer, writing the buffer to the file when it is full.
+	*
+	* @param out 		FileChannel the edge is written to.
+	* @param position 	long, position in the file of the end of the edges written so far, including the buffered ones.
+	* @param score 		int, the score of the edge.
+	* @param f 			int, the first fragment.
+	* @param g 			int, the second fragment.
+	* @param end 		int, where the alignment of the edge ends.
+	* @return 			long, position after the edge.
+	*/
+	private long put(FileChannel out, long position, int score, int f, int g, int end) throws IOException{
+		if(!write_buffer.hasRemaining()){
+			flush(out, position);
+		}
+		write_buffer.putInt(score).putInt(f).putInt(g).putInt(end);
+		return position+EDGE_BYTES;
+	}
+
+	/**
+	* Writes the content of the write buffer to the file, and clears it.
+	*
+	* @param out 		FileChannel the edges are written to.
+	* @param position 	long, position in the file of the end of the buffered edges.
+	*/
+	private void flush(FileChannel out, long position) throws IOException{
+		write_buffer.flip();
+		long start = position-write_buffer.remaining();
+		while(write_buffer.hasRemaining()){
+			start += out.write(write_buffer, start);
+		}
+		write_buffer.clear();
+	}
+
+	/**
+	* Merges the runs by groups of MAX_FAN_IN into a new file, until at most MAX_FAN_IN runs are left. Empty runs are dropped.
+	*/
+	private void mergeRuns() throws IOException{
+		int runs = 0;
+		for(int run=0; run<run_lengths.length; run++){
+			if(run_lengths[run]>0){
+				run_offsets[runs] = run_offsets[run];
+				run_lengths[runs++] = run_lengths[run];
+			}
+		}
+		run_offsets = Arrays.copyOf(run_offsets, runs);
+		run_lengths = Arrays.copyOf(run_lengths, runs);
+
+		while(run_offsets.length>MAX_FAN_IN){
+			File merged_file = File.createTempFile("overlap", ".runs", file.getParentFile());
+			RandomAccessFile merged_raf = null;
+			FileChannel merged_channel;
+
+			int groups = (run_offsets.length+MAX_FAN_IN-1)/MAX_FAN_IN;
+			long[] merged_offsets = new long[groups];
+			long[] merged_lengths = new long[groups];
+			try{
+				merged_raf = new RandomAccessFile(merged_file, "rw");
+				merged_channel = merged_raf.getChannel();
+				long position = 0;
+				for(int group=0; group<groups; group++){
+					merged_offsets[group] = position;
+					Iterator<int[]> edges = merge(group*MAX_FAN_IN, Math.min(run_offsets.length, (group+1)*MAX_FAN_IN));
+					while(edges.hasNext()){
+						int[] edge = edges.next();
+						position = put(merged_channel, position, edge[0], edge[1], edge[2], edge[3]);
+						merged_lengths[group]++;
+					}
+					flush(merged_channel, position);
+				}
+			} catch(IOException | RuntimeException e) {
+				if(merged_raf!=null){
+					merged_raf.close();
+				}
+				merged_file.delete();
+				throw e;
+			}
+
+			close();
+			file = merged_file;
+			raf = merged_raf;
+			channel = merged_channel;
+			run_offsets = merged_offsets;
+			run_lengths = merged_lengths;
+		}
+	}
+
+	/**
+	* Streams every edge of the graph by decreasing score, merging the runs left in the file.
+	*
+	* @return 	Iterator<int[]> over the edges, each of the form {score, f, g, end}.
+	*/
+	public Iterator<int[]> iterator(){
+		return merge(0, run_offsets.length);
+	}
+
+	/**
+	* Merges a range of runs of the file.
+	*
+	* @param from 	int, first run to merge.
+	* @param to 	int, run after the last one to merge.
+	* @return 		Iterator<int[]> over the edges of the runs, each of the form {score, f, g, end}, by decreasing score.
+	*/
+	private Iterator<int[]> merge(int from, int to){
+		final PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>(Math.max(1, to-from),
+			(x, y) -> x.head[0]!=y.head[0] ? Integer.compare(y.head[0], x.head[0]) : x.head[1]!=y.head[1] ? Integer.compare(x.head[1], y.head[1]) : Integer.compare(x.head[2], y.head[2]));
+
+		for(int run=from; run<to; run++){
+			RunReader reader = new RunReader(run_offsets[run], run_lengths[run]);
+			if(reader.advance()){
+				heads.add(reader);
+			}
+		}
+
+		return new Iterator<int[]>(){
+			public boolean hasNext(){
+				return !heads.isEmpty();
+			}
+
+			public int[] next(){
+				if(heads.isEmpty()){
+					throw new NoSuchElementException();
+				}
+				RunReader reader = heads.poll();
+				int[] head = reader.head;
+				if(reader.advance()){
+					heads.add(reader);
+				}
+				return head;
+			}
+		};
+	}
+
+	/**
+	* Closes and deletes the file backing the graph.
+	*/
+	public void close(){
+		try{
+			channel.close();
+			raf.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+
+	/**
+	* Reads the edges of a run one at a time, through a small window of the file.
+	*
+	* @author 	HUYLENBROECK Florent
+	*/
+	private class RunReader{
+
+		private ByteBuffer window = ByteBuffer.allocate(READ_WINDOW_BYTES);
+		private long position;
+		private long remaining;
+
+		/**
+		* Current edge of the run, {score, f, g, end}.
+		*/
+		private int[] head;
+
+		/**
+		* @param offset 	long, position of the run in the file.
+		* @param length 	long, number of edges of the run.
+		*/
+		public RunReader(long offset, long length){
+			position = offset;
+			remaining = length;
+			window.limit(0);
+		}
+
+		/**
+		* Reads the next edge of the run into head, refilling the window from the file when it is empty.
+		*
+		* @return 	boolean, false if the run has no edge left.
+		*/
+		public boolean advance(){
+			if(remaining==0){
+				return false;
+			}
+			if(!window.hasRemaining()){
+				window.clear();
+				window.limit((int)Math.min(READ_WINDOW_BYTES, remaining*EDGE_BYTES));
+				try{
+					while(window.hasRemaining()){
+						int read = channel.read(window, position);
+						if(read<0){
+							throw new EOFException("Run ends past the end of \""+file+"\".");
+						}
+						position += read;
+					}
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				window.flip();
+			}
+			head = new int[] {window.getInt(), window.getInt(), window.getInt(), window.getInt()};
+			remaining--;
+			return true;
+		}
+	}
+}